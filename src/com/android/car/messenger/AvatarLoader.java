@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.messenger.log.L;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.RequestOptions;
+import com.bumptech.glide.request.target.SimpleTarget;
+import com.bumptech.glide.request.transition.Transition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Loads the circular contact photos shown in notifications, with at most one pending load per
+ * sender and per photo.
+ * <p>
+ * A new load for a sender supersedes its pending one, whose callback is dropped; a Glide request
+ * nobody waits for anymore is cancelled. Loads of the same photo for different senders, e.g. one
+ * contact writing from two phones, share one Glide request. This class must only be used on the
+ * main thread.
+ */
+class AvatarLoader {
+    private static final String TAG = "CM.AvatarLoader";
+
+    private final Context mContext;
+    private final Map<Uri, PhotoLoad> mLoadsByUri = new HashMap<>();
+    private final Map<SenderKey, PhotoLoad> mLoadsBySender = new HashMap<>();
+
+    private int mStartedCount;
+    private int mSupersededCount;
+    private int mCoalescedCount;
+    private int mCancelledCount;
+
+    AvatarLoader(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Loads the photo at {@code photoUri} for {@code senderKey}, superseding any load still
+     * pending for that sender. {@code callback} receives {@code null} if there is no photo or it
+     * can't be loaded, and is not called at all if the load is superseded.
+     */
+    void load(SenderKey senderKey, @Nullable Uri photoUri, Consumer<Bitmap> callback) {
+        PhotoLoad previous = mLoadsBySender.remove(senderKey);
+        if (previous != null) {
+            mSupersededCount++;
+            previous.mCallbacks.remove(senderKey);
+            if (previous.mUri.equals(photoUri)) {
+                // Same photo: keep the running request, only the callback changes.
+                previous.mCallbacks.put(senderKey, callback);
+                mLoadsBySender.put(senderKey, previous);
+                return;
+            }
+            if (previous.mCallbacks.isEmpty()) {
+                cancel(previous);
+            }
+        }
+
+        if (photoUri == null) {
+            callback.accept(null);
+            return;
+        }
+
+        PhotoLoad load = mLoadsByUri.get(photoUri);
+        if (load != null) {
+            mCoalescedCount++;
+        } else {
+            load = new PhotoLoad(photoUri);
+            mLoadsByUri.put(photoUri, load);
+        }
+        load.mCallbacks.put(senderKey, callback);
+        mLoadsBySender.put(senderKey, load);
+        if (!load.mStarted) {
+            // Started last: a memory cache hit completes the load right away.
+            load.start();
+        }
+    }
+
+    /** Cancels all pending loads, dropping their callbacks. */
+    void shutdown() {
+        for (PhotoLoad load : new ArrayList<>(mLoadsByUri.values())) {
+            cancel(load);
+        }
+        mLoadsBySender.clear();
+        L.d(TAG, "%s", this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AvatarLoader{started=%d, superseded=%d, coalesced=%d, "
+                        + "cancelled=%d, pending=%d}",
+                mStartedCount, mSupersededCount, mCoalescedCount, mCancelledCount,
+                mLoadsByUri.size());
+    }
+
+    private void cancel(PhotoLoad load) {
+        mCancelledCount++;
+        mLoadsByUri.remove(load.mUri);
+        load.mCallbacks.clear();
+        Glide.with(mContext).clear(load);
+    }
+
+    private void complete(PhotoLoad load, @Nullable Bitmap bitmap) {
+        if (mLoadsByUri.get(load.mUri) != load) {
+            // Cancelled.
+            return;
+        }
+        mLoadsByUri.remove(load.mUri);
+        for (Map.Entry<SenderKey, Consumer<Bitmap>> entry : load.mCallbacks.entrySet()) {
+            mLoadsBySender.remove(entry.getKey(), load);
+            entry.getValue().accept(bitmap);
+        }
+    }
+
+    private class PhotoLoad extends SimpleTarget<Bitmap> {
+        final Uri mUri;
+        final Map<SenderKey, Consumer<Bitmap>> mCallbacks = new LinkedHashMap<>();
+        boolean mStarted;
+
+        PhotoLoad(Uri uri) {
+            mUri = uri;
+        }
+
+        void start() {
+            mStarted = true;
+            mStartedCount++;
+            Glide.with(mContext)
+                    .asBitmap()
+                    .load(mUri)
+                    .apply(RequestOptions.circleCropTransform())
+                    .into(this);
+        }
+
+        @Override
+        public void onResourceReady(Bitmap bitmap, Transition<? super Bitmap> transition) {
+            complete(this, bitmap);
+        }
+
+        @Override
+        public void onLoadFailed(@Nullable Drawable fallback) {
+            complete(this, null);
+        }
+    }
+}
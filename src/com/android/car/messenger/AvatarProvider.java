@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.messenger;
+
+/**
+ * Serves avatars to the notifications showing them, so that they are referenced by URI instead of
+ * being parceled with every update.
+ * <p>
+ * Unlike {@link AttachmentProvider}, the provider is exported: the notification manager doesn't
+ * grant access to icon URIs. Avatars are contact photos, so reading them requires the contacts
+ * permission.
+ */
+public class AvatarProvider extends ImageProvider {
+    @Override
+    ImageCache getCache() {
+        return ImageCache.getAvatars(getContext());
+    }
+}
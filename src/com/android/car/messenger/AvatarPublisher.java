@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.messenger;
+package com.android.car.messenger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.messenger.log.L;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Publishes the avatars shown in notifications to {@link ImageCache#getAvatars(Context)}, which
+ * {@link AvatarProvider} serves by URI.
+ * <p>
+ * Avatars are keyed by a SHA-256 digest of their pixels, so publishing the same avatar again only
+ * costs a digest, and a changed photo gets a new URI that no reader can have cached. This class is
+ * thread-safe.
+ */
+class AvatarPublisher {
+    private static final String TAG = "CM.AvatarPublisher";
+
+    private static AvatarPublisher sInstance;
+
+    private final ImageCache mCache;
+
+    private int mWrittenCount;
+    private int mReusedCount;
+
+    /** Returns the publisher of this process. */
+    static synchronized AvatarPublisher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AvatarPublisher(ImageCache.getAvatars(context));
+        }
+        return sInstance;
+    }
+
+    private AvatarPublisher(ImageCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Caches {@code bitmap} unless an identical avatar already is.
+     *
+     * @return the URI serving the avatar, or {@code null} if it couldn't be written
+     */
+    @Nullable
+    Uri publish(Bitmap bitmap) {
+        String key = getKey(bitmap);
+        if (key == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (mCache.get(key) != null) {
+                mReusedCount++;
+                return mCache.getUri(key);
+            }
+            if (!mCache.put(key, bitmap)) {
+                return null;
+            }
+            mWrittenCount++;
+            L.d(TAG, "Published avatar %s: %s", key, this);
+            return mCache.getUri(key);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AvatarPublisher{written=%d, reused=%d}", mWrittenCount,
+                mReusedCount);
+    }
+
+    @Nullable
+    private static String getKey(Bitmap bitmap) {
+        if (bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            // Pixels of hardware bitmaps can't be read directly.
+            bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false /* isMutable */);
+        }
+        ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(pixels.array());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android platform provides SHA-256.
+            L.wtf(TAG, e, "Unable to key avatar");
+            return null;
+        }
+        StringBuilder key = new StringBuilder(String.format("%dx%d-", bitmap.getWidth(),
+                bitmap.getHeight()));
+        for (byte b : digest) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+}
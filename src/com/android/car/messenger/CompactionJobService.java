@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.res.Resources.NotFoundException;
+import android.os.SystemClock;
+
+import com.android.car.messenger.log.L;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes messages of device sessions that ended longer ago than the retention window, from the
+ * {@link ConversationStore}, the Telephony provider and the {@link MessageFingerprints}.
+ * <p>
+ * Messages are removed in chunks, each in its own transaction, so the job can stop between any
+ * two of them and resume later. Once done, the job schedules itself for the next session to
+ * expire, if any.
+ */
+public class CompactionJobService extends JobService {
+    private static final String TAG = "CM.CompactionJobService";
+    private static final int JOB_ID = 1;
+    private static final int CHUNK_SIZE = 200;
+    private static final int DEFAULT_MESSAGE_RETENTION_HOURS = 24;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private volatile boolean mStopped;
+
+    /**
+     * Schedules the compaction to run once the retention window of a session ending now has
+     * passed, unless it is already scheduled.
+     */
+    static void schedule(Context context) {
+        if (context.getSystemService(JobScheduler.class).getPendingJob(JOB_ID) == null) {
+            schedule(context, getRetentionMs(context));
+        }
+    }
+
+    /** Schedules the compaction to run in {@code delayMs}, replacing any scheduled run. */
+    private static void schedule(Context context, long delayMs) {
+        context.getSystemService(JobScheduler.class).schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, CompactionJobService.class))
+                .setMinimumLatency(Math.max(0, delayMs))
+                .setPersisted(true)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mStopped = false;
+        mExecutor.execute(() -> {
+            if (compact()) {
+                jobFinished(params, false /* wantsReschedule */);
+                scheduleNext();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        mStopped = true;
+        // Expired messages are left, so run again.
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        mExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    /** Returns false if the job was stopped before all expired messages were removed. */
+    private boolean compact() {
+        long startTime = SystemClock.elapsedRealtime();
+        ConversationStore store = ConversationStore.getInstance(this);
+        MessageFingerprints fingerprints = MessageFingerprints.getInstance(this);
+        long cutoffTime = System.currentTimeMillis() - getRetentionMs(this);
+        int removedCount = 0;
+        Set<String> deviceAddresses = new HashSet<>();
+        while (!mStopped) {
+            List<MapMessage> messages = new ArrayList<>();
+            List<Long> telephonyIds = new ArrayList<>();
+            int removed = store.removeExpiredMessages(cutoffTime, CHUNK_SIZE, messages,
+                    telephonyIds);
+            SmsDatabaseHandler.removeMirroredMessages(this, telephonyIds);
+            for (MapMessage message : messages) {
+                fingerprints.remove(message);
+                deviceAddresses.add(message.getDeviceAddress());
+            }
+            removedCount += removed;
+            if (removed < CHUNK_SIZE) {
+                store.removeEmptySessions();
+                // Also resets any drift of the filters of devices with no messages left.
+                for (String deviceAddress : deviceAddresses) {
+                    if (!store.hasMessages(deviceAddress)) {
+                        fingerprints.clear(deviceAddress);
+                    }
+                }
+                fingerprints.save();
+                L.d(TAG, "Removed %d expired messages in %d ms", removedCount,
+                        SystemClock.elapsedRealtime() - startTime);
+                return true;
+            }
+        }
+        fingerprints.save();
+        L.d(TAG, "Stopped after removing %d expired messages", removedCount);
+        return false;
+    }
+
+    private void scheduleNext() {
+        Long earliestSessionEnd = ConversationStore.getInstance(this).getEarliestSessionEnd();
+        if (earliestSessionEnd != null) {
+            schedule(this, earliestSessionEnd + getRetentionMs(this) - System.currentTimeMillis());
+        }
+    }
+
+    private static long getRetentionMs(Context context) {
+        int retentionHours;
+        try {
+            retentionHours = context.getResources().getInteger(
+                    R.integer.config_messageRetentionHours);
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests;
+            L.e(TAG, e, "Using default message retention");
+            retentionHours = DEFAULT_MESSAGE_RETENTION_HOURS;
+        }
+        return TimeUnit.HOURS.toMillis(retentionHours);
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.car.messenger.log.L;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory index from phone numbers to the contacts they belong to, used to resolve message
+ * senders without a {@link ContactsContract.PhoneLookup} query per message.
+ * <p>
+ * All phone numbers are loaded in one query, and loaded again after the contacts change, e.g.
+ * once a contacts sync from a phone has settled. Numbers are indexed by their E.164 form, and by
+ * their last {@link #SUFFIX_LENGTH} digits as a fallback for numbers stored or received in a
+ * different format, much like {@link PhoneNumberUtils#compare}.
+ * When several contacts share a number, the one with the lowest id is used, so lookups give the
+ * same result until the contacts change; a suffix shared by several contacts matches none of
+ * them. Until the first load completes, lookups fall back to {@code PhoneLookup}. This class is
+ * thread-safe.
+ */
+class ContactIndex {
+    private static final String TAG = "CM.ContactIndex";
+    // Same number of trailing digits PhoneNumberUtils.compare() uses.
+    @VisibleForTesting
+    static final int SUFFIX_LENGTH = 7;
+    // Contacts syncs write in many batches; reload once they've been quiet this long.
+    private static final long RELOAD_DELAY_MS = 2000;
+
+    private static final String[] PHONE_PROJECTION = {
+            Phone.CONTACT_ID,
+            Phone.NUMBER,
+            Phone.NORMALIZED_NUMBER,
+            Phone.DISPLAY_NAME,
+            Phone.PHOTO_THUMBNAIL_URI,
+    };
+
+    /** A contact a phone number belongs to. */
+    static class Contact {
+        private final long mContactId;
+        private final String mDisplayName;
+        @Nullable
+        private final Uri mPhotoUri;
+
+        Contact(long contactId, String displayName, @Nullable Uri photoUri) {
+            mContactId = contactId;
+            mDisplayName = displayName;
+            mPhotoUri = photoUri;
+        }
+
+        long getContactId() {
+            return mContactId;
+        }
+
+        String getDisplayName() {
+            return mDisplayName;
+        }
+
+        /** Returns the URI of the contact's thumbnail photo, or {@code null} if it has none. */
+        @Nullable
+        Uri getPhotoUri() {
+            return mPhotoUri;
+        }
+    }
+
+    // Marks a suffix shared by several contacts.
+    private static final Contact AMBIGUOUS = new Contact(0, null, null);
+
+    private final ContentResolver mContentResolver;
+    private final String mCountryIso;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mReloadRunnable = this::scheduleLoad;
+    private final ContentObserver mContactsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mHandler.removeCallbacks(mReloadRunnable);
+            mHandler.postDelayed(mReloadRunnable, RELOAD_DELAY_MS);
+        }
+    };
+
+    @Nullable
+    private volatile Snapshot mSnapshot;
+
+    ContactIndex(Context context) {
+        mContentResolver = context.getContentResolver();
+        mCountryIso = getCountryIso(context);
+        mContentResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI,
+                true /* notifyForDescendants */, mContactsObserver);
+        scheduleLoad();
+    }
+
+    /**
+     * Returns the contact of the sender with {@code senderUri}, e.g. "tel:+15555550100", or a
+     * bare phone number; {@code null} if none matches.
+     */
+    @Nullable
+    Contact lookup(@Nullable String senderUri) {
+        if (TextUtils.isEmpty(senderUri)) {
+            return null;
+        }
+        String number = toPhoneNumber(senderUri);
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return queryPhoneLookup(number);
+        }
+
+        String e164 = toE164(number, mCountryIso);
+        Contact contact = e164 != null ? snapshot.mByE164.get(e164) : null;
+        if (contact == null) {
+            String suffix = toSuffix(number);
+            contact = suffix != null ? snapshot.mBySuffix.get(suffix) : null;
+        }
+        return contact == AMBIGUOUS ? null : contact;
+    }
+
+    /** Blocks until all scheduled loads are done. */
+    @VisibleForTesting
+    void awaitPendingLoads() throws InterruptedException, ExecutionException {
+        mExecutor.submit(() -> {}).get();
+    }
+
+    void shutdown() {
+        mContentResolver.unregisterContentObserver(mContactsObserver);
+        mHandler.removeCallbacks(mReloadRunnable);
+        mExecutor.shutdown();
+    }
+
+    private void scheduleLoad() {
+        mExecutor.execute(() -> {
+            long startTime = SystemClock.elapsedRealtime();
+            Snapshot snapshot = new Snapshot();
+            int rows = 0;
+            try (Cursor cursor = mContentResolver.query(Phone.CONTENT_URI, PHONE_PROJECTION,
+                    null, null, Phone.CONTACT_ID)) {
+                while (cursor != null && cursor.moveToNext()) {
+                    rows++;
+                    String photoUri = cursor.getString(4);
+                    Contact contact = new Contact(cursor.getLong(0), cursor.getString(3),
+                            photoUri != null ? Uri.parse(photoUri) : null);
+                    String number = cursor.getString(1);
+                    String e164 = cursor.getString(2);
+                    if (e164 == null && number != null) {
+                        e164 = toE164(number, mCountryIso);
+                    }
+                    snapshot.add(e164, toSuffix(number), contact);
+                }
+            } catch (SecurityException e) {
+                L.e(TAG, e, "Unable to load contacts");
+                return;
+            }
+            mSnapshot = snapshot;
+            L.d(TAG, "Indexed %d phone numbers (%d E.164 keys) in %d ms", rows,
+                    snapshot.mByE164.size(), SystemClock.elapsedRealtime() - startTime);
+        });
+    }
+
+    @Nullable
+    private Contact queryPhoneLookup(String number) {
+        Uri lookupUri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
+                Uri.encode(number));
+        String[] projection = {
+                ContactsContract.PhoneLookup._ID,
+                ContactsContract.PhoneLookup.DISPLAY_NAME,
+                ContactsContract.PhoneLookup.PHOTO_THUMBNAIL_URI,
+        };
+        try (Cursor cursor = mContentResolver.query(lookupUri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && cursor.isLast()) {
+                String photoUri = cursor.getString(2);
+                return new Contact(cursor.getLong(0), cursor.getString(1),
+                        photoUri != null ? Uri.parse(photoUri) : null);
+            }
+        }
+        L.w(TAG, "Unable to find contact from phone number.");
+        return null;
+    }
+
+    /** Returns the phone number of a "tel:" URI, or {@code senderUri} itself otherwise. */
+    static String toPhoneNumber(String senderUri) {
+        return senderUri.startsWith("tel:")
+                ? Uri.parse(senderUri).getSchemeSpecificPart() : senderUri;
+    }
+
+    @VisibleForTesting
+    @Nullable
+    static String toE164(String number, String countryIso) {
+        return PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    }
+
+    /** Returns the last {@link #SUFFIX_LENGTH} digits of {@code number}, or {@code null}. */
+    @VisibleForTesting
+    @Nullable
+    static String toSuffix(@Nullable String number) {
+        if (number == null) {
+            return null;
+        }
+        StringBuilder digits = new StringBuilder(SUFFIX_LENGTH);
+        for (int i = number.length() - 1; i >= 0 && digits.length() < SUFFIX_LENGTH; i--) {
+            char c = number.charAt(i);
+            if (Character.isDigit(c)) {
+                digits.append(c);
+            }
+        }
+        return digits.length() == SUFFIX_LENGTH ? digits.reverse().toString() : null;
+    }
+
+    /** Returns the ISO code of the country phone numbers without a country code belong to. */
+    static String getCountryIso(Context context) {
+        TelephonyManager telephonyManager = context.getSystemService(TelephonyManager.class);
+        String countryIso = telephonyManager != null
+                ? telephonyManager.getNetworkCountryIso() : null;
+        if (TextUtils.isEmpty(countryIso)) {
+            // Head units usually have no radio; fall back to the configured locale.
+            countryIso = Locale.getDefault().getCountry();
+        }
+        return countryIso.toUpperCase(Locale.ROOT);
+    }
+
+    private static class Snapshot {
+        final Map<String, Contact> mByE164 = new HashMap<>();
+        final Map<String, Contact> mBySuffix = new HashMap<>();
+
+        // Rows must be added in increasing order of contact id.
+        void add(@Nullable String e164, @Nullable String suffix, Contact contact) {
+            if (e164 != null) {
+                mByE164.putIfAbsent(e164, contact);
+            }
+            if (suffix != null) {
+                Contact previous = mBySuffix.putIfAbsent(suffix, contact);
+                if (previous != null && previous.mContactId != contact.mContactId) {
+                    mBySuffix.put(suffix, AMBIGUOUS);
+                }
+            }
+        }
+    }
+}
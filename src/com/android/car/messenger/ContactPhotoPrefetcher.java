@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Telephony;
+import android.text.TextUtils;
+
+import com.android.car.messenger.log.L;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.request.RequestOptions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Warms the avatar pipeline for the likely senders of a device when it connects, so that the
+ * first notification of each sender doesn't wait on a photo load and decode.
+ * <p>
+ * Senders are taken from the device's history in {@link ConversationStore}, most frequent first,
+ * then topped up with the most recent senders in the Telephony SMS inbox.
+ */
+class ContactPhotoPrefetcher {
+    private static final String TAG = "CM.ContactPhotoPrefetcher";
+    private static final int MAX_SENDERS = 10;
+    // Inbox rows scanned for recent senders; one sender usually has several rows.
+    private static final int MAX_INBOX_ROWS = 200;
+
+    private final Context mContext;
+    private final ConversationStore mConversationStore;
+    private final ContactIndex mContactIndex;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    ContactPhotoPrefetcher(Context context, ConversationStore conversationStore,
+            ContactIndex contactIndex) {
+        mContext = context;
+        mConversationStore = conversationStore;
+        mContactIndex = contactIndex;
+    }
+
+    /** Preloads the photos of the likely senders of {@code deviceAddress} at low priority. */
+    void prefetch(String deviceAddress) {
+        mExecutor.execute(() -> {
+            Set<String> senderUris = new LinkedHashSet<>(
+                    mConversationStore.getFrequentSenderUris(deviceAddress, MAX_SENDERS));
+            if (senderUris.size() < MAX_SENDERS) {
+                addRecentInboxSenders(senderUris);
+            }
+
+            List<Uri> photoUris = new ArrayList<>();
+            for (String senderUri : senderUris) {
+                ContactIndex.Contact contact = mContactIndex.lookup(senderUri);
+                if (contact != null && contact.getPhotoUri() != null) {
+                    photoUris.add(contact.getPhotoUri());
+                }
+            }
+            L.d(TAG, "Prefetching %d photos of %d senders of %s", photoUris.size(),
+                    senderUris.size(), deviceAddress);
+
+            mMainHandler.post(() -> {
+                for (Uri photoUri : photoUris) {
+                    // Same request as AvatarLoader's, so the result is found in the cache.
+                    Glide.with(mContext)
+                            .asBitmap()
+                            .load(photoUri)
+                            .apply(RequestOptions.circleCropTransform())
+                            .priority(Priority.LOW)
+                            .preload();
+                }
+            });
+        });
+    }
+
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void addRecentInboxSenders(Set<String> senderUris) {
+        try (Cursor cursor = mContext.getContentResolver().query(Telephony.Sms.Inbox.CONTENT_URI,
+                new String[]{Telephony.Sms.ADDRESS}, null, null, Telephony.Sms.DEFAULT_SORT_ORDER)) {
+            int rows = 0;
+            while (cursor != null && cursor.moveToNext() && rows++ < MAX_INBOX_ROWS
+                    && senderUris.size() < MAX_SENDERS) {
+                String address = cursor.getString(0);
+                if (!TextUtils.isEmpty(address)) {
+                    senderUris.add(address);
+                }
+            }
+        } catch (SecurityException e) {
+            L.w(TAG, "Unable to read the SMS inbox: %s", e.getMessage());
+        }
+    }
+}
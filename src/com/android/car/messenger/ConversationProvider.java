@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BaseColumns;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.messenger.log.L;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Read-only provider exposing the live conversations of {@link MessengerDelegate} to other apps,
+ * such as launcher cards and the assistant.
+ * <p>
+ * Supported URIs are {@link #CONVERSATIONS_URI}, and {@link #getMessagesUri(SenderKey)} for the
+ * messages of a single conversation. Cursors are built over immutable snapshots and only compute
+ * the values of requested columns: those of conversations when they are read, those of messages
+ * when the snapshot is taken, as message texts may be released later. Observers of
+ * {@link #CONTENT_URI} are notified whenever conversations change.
+ */
+public class ConversationProvider extends ContentProvider {
+    private static final String TAG = "CM.ConversationProvider";
+
+    public static final String AUTHORITY = "com.android.car.messenger.conversations";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+    public static final Uri CONVERSATIONS_URI =
+            Uri.withAppendedPath(CONTENT_URI, ConversationColumns.PATH);
+
+    /** Columns of {@link #CONVERSATIONS_URI}. */
+    public static final class ConversationColumns implements BaseColumns {
+        static final String PATH = "conversations";
+        public static final String DEVICE_ADDRESS = "device_address";
+        public static final String SENDER_KEY = "sender_key";
+        public static final String SENDER_NAME = "sender_name";
+        public static final String SENDER_CONTACT_URI = "sender_contact_uri";
+        public static final String LAST_ACTIVITY_TIME = "last_activity_time";
+        public static final String MESSAGE_COUNT = "message_count";
+        public static final String UNREAD_COUNT = "unread_count";
+    }
+
+    /** Columns of {@link #getMessagesUri(SenderKey)}. */
+    public static final class MessageColumns implements BaseColumns {
+        static final String PATH = "messages";
+        public static final String HANDLE = "handle";
+        public static final String SENDER_NAME = "sender_name";
+        public static final String BODY = "body";
+        public static final String RECEIVE_TIME = "receive_time";
+        public static final String READ = "read";
+    }
+
+    private static final int CONVERSATIONS = 1;
+    private static final int MESSAGES = 2;
+    private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        URI_MATCHER.addURI(AUTHORITY, ConversationColumns.PATH, CONVERSATIONS);
+        URI_MATCHER.addURI(AUTHORITY, MessageColumns.PATH + "/*/*", MESSAGES);
+    }
+
+    // How long a query waits for the main thread to take a snapshot.
+    private static final long SNAPSHOT_TIMEOUT_MS = 2000;
+
+    private static final Map<String, Function<ConversationSummary, Object>> CONVERSATION_COLUMNS =
+            new HashMap<>();
+    private static final Map<String, Function<MapMessage, Object>> MESSAGE_COLUMNS =
+            new HashMap<>();
+    static {
+        // Rows are addressed by position, which is stable within a snapshot.
+        CONVERSATION_COLUMNS.put(ConversationColumns._ID, null);
+        CONVERSATION_COLUMNS.put(ConversationColumns.DEVICE_ADDRESS,
+                c -> c.getSenderKey().getDeviceAddress());
+        CONVERSATION_COLUMNS.put(ConversationColumns.SENDER_KEY,
+                c -> c.getSenderKey().getSubKey());
+        CONVERSATION_COLUMNS.put(ConversationColumns.SENDER_NAME,
+                ConversationSummary::getSenderName);
+        CONVERSATION_COLUMNS.put(ConversationColumns.SENDER_CONTACT_URI,
+                ConversationSummary::getSenderContactUri);
+        CONVERSATION_COLUMNS.put(ConversationColumns.LAST_ACTIVITY_TIME,
+                ConversationSummary::getLastActivityTime);
+        CONVERSATION_COLUMNS.put(ConversationColumns.MESSAGE_COUNT,
+                ConversationSummary::getMessageCount);
+        CONVERSATION_COLUMNS.put(ConversationColumns.UNREAD_COUNT,
+                ConversationSummary::getUnreadCount);
+
+        MESSAGE_COLUMNS.put(MessageColumns._ID, null);
+        MESSAGE_COLUMNS.put(MessageColumns.HANDLE, MapMessage::getHandle);
+        MESSAGE_COLUMNS.put(MessageColumns.SENDER_NAME, MapMessage::getSenderName);
+        MESSAGE_COLUMNS.put(MessageColumns.BODY, MapMessage::getMessageText);
+        MESSAGE_COLUMNS.put(MessageColumns.RECEIVE_TIME, MapMessage::getReceiveTime);
+        MESSAGE_COLUMNS.put(MessageColumns.READ, m -> m.isReadOnCar() ? 1 : 0);
+    }
+
+    @Nullable
+    private static volatile MessengerDelegate sDelegate;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Sets the delegate whose state is served, or {@code null} once it is gone. */
+    static void setDelegate(@Nullable MessengerDelegate delegate) {
+        sDelegate = delegate;
+    }
+
+    /** Returns the URI of the messages of the conversation with {@code senderKey}. */
+    public static Uri getMessagesUri(SenderKey senderKey) {
+        return CONTENT_URI.buildUpon()
+                .appendPath(MessageColumns.PATH)
+                .appendPath(senderKey.getDeviceAddress())
+                .appendPath(senderKey.getSubKey())
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(Uri uri, @Nullable String[] projection, @Nullable String selection,
+            @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        Cursor cursor;
+        switch (URI_MATCHER.match(uri)) {
+            case CONVERSATIONS:
+                cursor = new SnapshotCursor<>(
+                        takeSnapshot(MessengerDelegate::getConversations),
+                        resolveProjection(projection, CONVERSATION_COLUMNS),
+                        CONVERSATION_COLUMNS);
+                break;
+            case MESSAGES:
+                List<String> segments = uri.getPathSegments();
+                SenderKey senderKey = new SenderKey(segments.get(1), segments.get(2));
+                String[] columns = resolveProjection(projection, MESSAGE_COLUMNS);
+                cursor = new SnapshotCursor<>(
+                        takeSnapshot(delegate -> delegate.projectMessages(senderKey,
+                                message -> projectMessage(message, columns))),
+                        columns, getRowColumns(columns));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        return cursor;
+    }
+
+    @Nullable
+    @Override
+    public String getType(Uri uri) {
+        switch (URI_MATCHER.match(uri)) {
+            case CONVERSATIONS:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY + "." + ConversationColumns.PATH;
+            case MESSAGES:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY + "." + MessageColumns.PATH;
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    @Override
+    public int delete(Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    @Override
+    public int update(Uri uri, @Nullable ContentValues values, @Nullable String selection,
+            @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read-only provider");
+    }
+
+    /** Runs {@code snapshot} on the main thread, which owns the delegate's state. */
+    private <T> List<T> takeSnapshot(Function<MessengerDelegate, List<T>> snapshot) {
+        MessengerDelegate delegate = sDelegate;
+        if (delegate == null) {
+            return Collections.emptyList();
+        }
+        Callable<List<T>> callable = () -> snapshot.apply(delegate);
+        try {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                return callable.call();
+            }
+            FutureTask<List<T>> task = new FutureTask<>(callable);
+            mMainHandler.post(task);
+            return task.get(SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            L.e(TAG, e, "Unable to take snapshot of conversations");
+            return Collections.emptyList();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String[] resolveProjection(@Nullable String[] projection,
+            Map<String, ?> columns) {
+        if (projection == null) {
+            return columns.keySet().toArray(new String[0]);
+        }
+        for (String column : projection) {
+            if (!columns.containsKey(column)) {
+                throw new IllegalArgumentException("Unknown column: " + column);
+            }
+        }
+        return projection;
+    }
+
+    /** Returns the values of {@code columns} of {@code message}, with null for the _id column. */
+    private static Object[] projectMessage(MapMessage message, String[] columns) {
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            Function<MapMessage, Object> getter = MESSAGE_COLUMNS.get(columns[i]);
+            row[i] = getter == null ? null : getter.apply(message);
+        }
+        return row;
+    }
+
+    /** Returns the getters of {@code columns} from rows built by {@link #projectMessage}. */
+    private static Map<String, Function<Object[], Object>> getRowColumns(String[] columns) {
+        Map<String, Function<Object[], Object>> getters = new HashMap<>();
+        for (int i = 0; i < columns.length; i++) {
+            final int index = i;
+            getters.put(columns[i],
+                    MESSAGE_COLUMNS.get(columns[i]) == null ? null : row -> row[index]);
+        }
+        return getters;
+    }
+
+    /**
+     * Cursor over a list of snapshots, computing a column value only when it is read, so that
+     * only the projected columns of the rows in the client's window are ever materialized.
+     */
+    private static class SnapshotCursor<T> extends AbstractCursor {
+        private final List<T> mRows;
+        private final String[] mColumnNames;
+        private final List<Function<T, Object>> mColumnGetters;
+
+        SnapshotCursor(List<T> rows, String[] columnNames,
+                Map<String, Function<T, Object>> getters) {
+            mRows = rows;
+            mColumnNames = columnNames;
+            mColumnGetters = new ArrayList<>(columnNames.length);
+            for (String column : columnNames) {
+                mColumnGetters.add(getters.get(column));
+            }
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Nullable
+        private Object getValue(int column) {
+            Function<T, Object> getter = mColumnGetters.get(column);
+            // A null getter is the _id column.
+            return getter == null ? getPosition() : getter.apply(mRows.get(getPosition()));
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = getValue(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = getValue(column);
+            return value instanceof Number ? ((Number) value).longValue() : 0;
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = getValue(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            }
+            return value instanceof Number ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getValue(column) == null;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.car.messenger.log.L;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * App-private SQLite store of the messages received from connected devices.
+ * <p>
+ * The database runs in write-ahead-logging mode, and the statements used on every message are
+ * compiled once and reused. Unlike the Telephony provider, this store is always writable, so it is
+ * the source of truth for the app's own features. All methods are thread-safe.
+ * <p>
+ * Messages are kept through disconnects: each connection of a device is a session, and messages
+ * received again in a later session take over their stored row, keeping its Telephony copy. Rows
+ * of sessions that ended longer ago than the retention window are removed by
+ * {@link CompactionJobService}.
+ */
+class ConversationStore extends SQLiteOpenHelper {
+    private static final String TAG = "CM.ConversationStore";
+    private static final String DATABASE_NAME = "conversations.db";
+    private static final int DATABASE_VERSION = 4;
+
+    static final String TABLE_MESSAGES = "messages";
+    static final String COLUMN_ID = "_id";
+    static final String COLUMN_DEVICE_ADDRESS = "device_address";
+    static final String COLUMN_HANDLE = "handle";
+    static final String COLUMN_SENDER_KEY = "sender_key";
+    static final String COLUMN_SENDER_NAME = "sender_name";
+    static final String COLUMN_SENDER_URI = "sender_uri";
+    static final String COLUMN_BODY = "body";
+    static final String COLUMN_RECEIVE_TIME = "receive_time";
+    /**
+     * Receive time the {@link MessageFingerprints} fingerprint of this message was added under.
+     * Unlike {@link #COLUMN_RECEIVE_TIME}, it is kept when a later copy takes over the row.
+     */
+    static final String COLUMN_FINGERPRINT_TIME = "fingerprint_time";
+    static final String COLUMN_READ_ON_PHONE = "read_on_phone";
+    static final String COLUMN_READ_ON_CAR = "read_on_car";
+    /** Row id of the copy of this message in the Telephony provider, or -1 if not mirrored. */
+    static final String COLUMN_TELEPHONY_ID = "telephony_id";
+    static final String COLUMN_SESSION = "session";
+
+    static final String TABLE_SESSIONS = "sessions";
+    /** Time the session ended, in ms since the epoch, or NULL while the device is connected. */
+    static final String COLUMN_END_TIME = "end_time";
+
+    static final long NO_TELEPHONY_ID = -1;
+    /** Most values bound to one {@code IN (...)} list, well below SQLite's limit of 999. */
+    static final int MAX_IN_PARAMETERS = 500;
+
+    private static final String UPDATE_MESSAGE = "UPDATE " + TABLE_MESSAGES + " SET "
+            + COLUMN_SENDER_KEY + "=?, "
+            + COLUMN_SENDER_NAME + "=?, "
+            + COLUMN_SENDER_URI + "=?, "
+            + COLUMN_BODY + "=?, "
+            + COLUMN_RECEIVE_TIME + "=?, "
+            + COLUMN_READ_ON_PHONE + "=?, "
+            + COLUMN_READ_ON_CAR + "=? "
+            + "WHERE " + COLUMN_DEVICE_ADDRESS + "=? AND " + COLUMN_HANDLE + "=? AND "
+            + COLUMN_SESSION + "=?";
+    private static final String INSERT_MESSAGE = "INSERT INTO " + TABLE_MESSAGES + " ("
+            + COLUMN_SENDER_KEY + ", "
+            + COLUMN_SENDER_NAME + ", "
+            + COLUMN_SENDER_URI + ", "
+            + COLUMN_BODY + ", "
+            + COLUMN_RECEIVE_TIME + ", "
+            + COLUMN_READ_ON_PHONE + ", "
+            + COLUMN_READ_ON_CAR + ", "
+            + COLUMN_DEVICE_ADDRESS + ", "
+            + COLUMN_HANDLE + ", "
+            + COLUMN_SESSION + ", "
+            + COLUMN_FINGERPRINT_TIME + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // Takes over the row of the same message received in an earlier session of the device.
+    private static final String ADOPT_MESSAGE = "UPDATE " + TABLE_MESSAGES + " SET "
+            + COLUMN_HANDLE + "=?, "
+            + COLUMN_SESSION + "=? "
+            + "WHERE " + COLUMN_ID + "=(SELECT " + COLUMN_ID + " FROM " + TABLE_MESSAGES
+            + " WHERE " + COLUMN_DEVICE_ADDRESS + "=? AND " + COLUMN_SENDER_KEY + "=? AND "
+            + COLUMN_RECEIVE_TIME + " BETWEEN ? AND ? AND " + COLUMN_BODY + "=? AND "
+            + COLUMN_SESSION + "<? LIMIT 1)";
+    private static final String UPDATE_TELEPHONY_ID = "UPDATE " + TABLE_MESSAGES + " SET "
+            + COLUMN_TELEPHONY_ID + "=? "
+            + "WHERE " + COLUMN_DEVICE_ADDRESS + "=? AND " + COLUMN_HANDLE + "=? AND "
+            + COLUMN_SESSION + "=?";
+    private static final String COUNT_SIMILAR_MESSAGES = "SELECT COUNT(*) FROM " + TABLE_MESSAGES
+            + " WHERE " + COLUMN_DEVICE_ADDRESS + "=? AND " + COLUMN_SENDER_KEY + "=? AND "
+            + COLUMN_RECEIVE_TIME + " BETWEEN ? AND ? AND " + COLUMN_BODY + "=?";
+    // Messages within this window of each other are considered the same message.
+    private static final long SIMILAR_MESSAGE_WINDOW_MS = 5000;
+    private static final String SELECT_EXPIRED_MESSAGES = "SELECT m." + COLUMN_ID + ", m."
+            + COLUMN_TELEPHONY_ID + ", m." + COLUMN_DEVICE_ADDRESS + ", m." + COLUMN_HANDLE
+            + ", m." + COLUMN_SENDER_NAME + ", m." + COLUMN_SENDER_URI + ", m." + COLUMN_BODY
+            + ", m." + COLUMN_FINGERPRINT_TIME + " FROM " + TABLE_MESSAGES + " m JOIN " + TABLE_SESSIONS
+            + " s ON m." + COLUMN_DEVICE_ADDRESS + "=s." + COLUMN_DEVICE_ADDRESS + " AND m."
+            + COLUMN_SESSION + "=s." + COLUMN_SESSION + " WHERE s." + COLUMN_END_TIME + "<? "
+            + "LIMIT ";
+    private static final String DELETE_EMPTY_SESSIONS = "DELETE FROM " + TABLE_SESSIONS
+            + " WHERE " + COLUMN_END_TIME + " IS NOT NULL AND NOT EXISTS (SELECT 1 FROM "
+            + TABLE_MESSAGES + " m WHERE m." + COLUMN_DEVICE_ADDRESS + "=" + TABLE_SESSIONS + "."
+            + COLUMN_DEVICE_ADDRESS + " AND m." + COLUMN_SESSION + "=" + TABLE_SESSIONS + "."
+            + COLUMN_SESSION + ")";
+
+    private static ConversationStore sInstance;
+
+    // Active session per device address, mirroring the sessions table.
+    private final Map<String, Long> mActiveSessions = new HashMap<>();
+
+    @Nullable
+    private SQLiteStatement mUpdateMessageStatement;
+    @Nullable
+    private SQLiteStatement mInsertMessageStatement;
+    @Nullable
+    private SQLiteStatement mUpdateTelephonyIdStatement;
+    @Nullable
+    private SQLiteStatement mCountSimilarMessagesStatement;
+    @Nullable
+    private SQLiteStatement mAdoptMessageStatement;
+
+    /**
+     * Returns the store of this process, shared by the service and the compaction job. It may be
+     * used again after {@link #close()}.
+     */
+    static synchronized ConversationStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConversationStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ConversationStore(Context context) {
+        super(context, DATABASE_NAME, null /* factory */, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_DEVICE_ADDRESS + " TEXT NOT NULL, "
+                + COLUMN_HANDLE + " TEXT NOT NULL, "
+                + COLUMN_SENDER_KEY + " TEXT NOT NULL, "
+                + COLUMN_SENDER_NAME + " TEXT NOT NULL, "
+                + COLUMN_SENDER_URI + " TEXT, "
+                + COLUMN_BODY + " TEXT NOT NULL, "
+                + COLUMN_RECEIVE_TIME + " INTEGER NOT NULL, "
+                + COLUMN_READ_ON_PHONE + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_READ_ON_CAR + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_TELEPHONY_ID + " INTEGER NOT NULL DEFAULT " + NO_TELEPHONY_ID + ", "
+                + COLUMN_SESSION + " INTEGER NOT NULL, "
+                + COLUMN_FINGERPRINT_TIME + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX idx_device_sender_time ON " + TABLE_MESSAGES + " ("
+                + COLUMN_DEVICE_ADDRESS + ", " + COLUMN_SENDER_KEY + ", "
+                + COLUMN_RECEIVE_TIME + ")");
+        // Handles are only unique within a session of the device.
+        db.execSQL("CREATE UNIQUE INDEX idx_device_session_handle ON " + TABLE_MESSAGES + " ("
+                + COLUMN_DEVICE_ADDRESS + ", " + COLUMN_SESSION + ", " + COLUMN_HANDLE + ")");
+        db.execSQL("CREATE TABLE " + TABLE_SESSIONS + " ("
+                + COLUMN_DEVICE_ADDRESS + " TEXT NOT NULL, "
+                + COLUMN_SESSION + " INTEGER NOT NULL, "
+                + COLUMN_END_TIME + " INTEGER, "
+                + "PRIMARY KEY (" + COLUMN_DEVICE_ADDRESS + ", " + COLUMN_SESSION + "))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The store only caches messages received from devices, so it is safe to start over.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SESSIONS);
+        onCreate(db);
+    }
+
+    /**
+     * Inserts {@code message}, or updates it if a message with the same handle exists in the
+     * active session of its device. A copy of the message stored in an earlier session is taken
+     * over instead of inserting a new row.
+     *
+     * @return true if a new row was inserted, in which case the caller should add the message to
+     * the {@link MessageFingerprints}, so that each row accounts for exactly one fingerprint
+     */
+    synchronized boolean addOrUpdate(MapMessage message) {
+        SQLiteDatabase db = getWritableDatabase();
+        if (mUpdateMessageStatement == null) {
+            mUpdateMessageStatement = db.compileStatement(UPDATE_MESSAGE);
+            mInsertMessageStatement = db.compileStatement(INSERT_MESSAGE);
+            mAdoptMessageStatement = db.compileStatement(ADOPT_MESSAGE);
+        }
+        long session = getActiveSession(message.getDeviceAddress());
+        bindMessage(mUpdateMessageStatement, message);
+        mUpdateMessageStatement.bindLong(10, session);
+        try {
+            if (mUpdateMessageStatement.executeUpdateDelete() > 0) {
+                return false;
+            }
+            if (adopt(message, session)) {
+                mUpdateMessageStatement.executeUpdateDelete();
+                return false;
+            }
+            bindMessage(mInsertMessageStatement, message);
+            mInsertMessageStatement.bindLong(10, session);
+            mInsertMessageStatement.bindLong(11, message.getReceiveTime());
+            return mInsertMessageStatement.executeInsert() != -1;
+        } finally {
+            mUpdateMessageStatement.clearBindings();
+            mInsertMessageStatement.clearBindings();
+        }
+    }
+
+    /**
+     * Returns the session of the connection of {@code deviceAddress}, starting a new one if the
+     * device has none.
+     */
+    synchronized long getActiveSession(String deviceAddress) {
+        Long session = mActiveSessions.get(deviceAddress);
+        if (session != null) {
+            return session;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        String[] selectionArgs = {deviceAddress};
+        try (Cursor cursor = db.query(TABLE_SESSIONS, new String[]{COLUMN_SESSION},
+                COLUMN_DEVICE_ADDRESS + "=? AND " + COLUMN_END_TIME + " IS NULL", selectionArgs,
+                null /* groupBy */, null /* having */, null /* orderBy */)) {
+            if (cursor.moveToFirst()) {
+                session = cursor.getLong(0);
+            }
+        }
+        if (session == null) {
+            session = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + COLUMN_SESSION
+                    + "), 0) + 1 FROM " + TABLE_SESSIONS + " WHERE " + COLUMN_DEVICE_ADDRESS
+                    + "=?", selectionArgs);
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_DEVICE_ADDRESS, deviceAddress);
+            values.put(COLUMN_SESSION, session);
+            db.insert(TABLE_SESSIONS, null /* nullColumnHack */, values);
+            L.d(TAG, "Started session %d of %s", session, deviceAddress);
+        }
+        mActiveSessions.put(deviceAddress, session);
+        return session;
+    }
+
+    /**
+     * Returns the active session of {@code deviceAddress}, or its last one if it is disconnected,
+     * without starting a new one. Writes queued on other threads when the device disconnected
+     * still reach their rows this way. Returns 0, which matches no rows, if the device never
+     * connected.
+     */
+    private long getLatestSession(String deviceAddress) {
+        Long session = mActiveSessions.get(deviceAddress);
+        if (session != null) {
+            return session;
+        }
+        return DatabaseUtils.longForQuery(getReadableDatabase(), "SELECT IFNULL(MAX("
+                + COLUMN_SESSION + "), 0) FROM " + TABLE_SESSIONS + " WHERE "
+                + COLUMN_DEVICE_ADDRESS + "=?", new String[]{deviceAddress});
+    }
+
+    /**
+     * Ends the active session of {@code deviceAddress}, if any. Its messages are kept for the
+     * retention window, counted from {@code endTime}.
+     */
+    synchronized void endSession(String deviceAddress, long endTime) {
+        mActiveSessions.remove(deviceAddress);
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_END_TIME, endTime);
+        getWritableDatabase().update(TABLE_SESSIONS, values,
+                COLUMN_DEVICE_ADDRESS + "=? AND " + COLUMN_END_TIME + " IS NULL",
+                new String[]{deviceAddress});
+    }
+
+    /** Ends the active sessions of all devices not in {@code connectedDeviceAddresses}. */
+    synchronized void endSessionsExcept(Collection<String> connectedDeviceAddresses,
+            long endTime) {
+        List<String> deviceAddresses = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_SESSIONS,
+                new String[]{COLUMN_DEVICE_ADDRESS}, COLUMN_END_TIME + " IS NULL",
+                null /* selectionArgs */, null /* groupBy */, null /* having */,
+                null /* orderBy */)) {
+            while (cursor.moveToNext()) {
+                deviceAddresses.add(cursor.getString(0));
+            }
+        }
+        for (String deviceAddress : deviceAddresses) {
+            if (!connectedDeviceAddresses.contains(deviceAddress)) {
+                endSession(deviceAddress, endTime);
+            }
+        }
+    }
+
+    /**
+     * Marks the messages with the given {@code handles} as read, with one statement per
+     * {@link #MAX_IN_PARAMETERS} handles, in a single transaction. Handles refer to the latest
+     * session of the device, see {@link #getLatestSession}.
+     */
+    synchronized void markAsRead(String deviceAddress, Collection<String> handles) {
+        SQLiteDatabase db = getWritableDatabase();
+        String session = Long.toString(getLatestSession(deviceAddress));
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_READ_ON_CAR, 1);
+        db.beginTransaction();
+        try {
+            for (List<String> chunk : chunk(new ArrayList<>(handles))) {
+                String[] selectionArgs = new String[chunk.size() + 2];
+                selectionArgs[0] = deviceAddress;
+                selectionArgs[1] = session;
+                for (int i = 0; i < chunk.size(); i++) {
+                    selectionArgs[i + 2] = chunk.get(i);
+                }
+                db.update(TABLE_MESSAGES, values, COLUMN_DEVICE_ADDRESS + "=? AND "
+                        + COLUMN_SESSION + "=? AND " + COLUMN_HANDLE + " IN ("
+                        + makePlaceholders(chunk.size()) + ")", selectionArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the Telephony provider row ids of the messages with the given {@code handles} in the
+     * latest session of the device, keyed by handle. Messages that were not mirrored are omitted.
+     */
+    synchronized Map<String, Long> getTelephonyIds(String deviceAddress,
+            Collection<String> handles) {
+        Map<String, Long> telephonyIds = new HashMap<>();
+        String session = Long.toString(getLatestSession(deviceAddress));
+        for (List<String> chunk : chunk(new ArrayList<>(handles))) {
+            String[] selectionArgs = new String[chunk.size() + 2];
+            selectionArgs[0] = deviceAddress;
+            selectionArgs[1] = session;
+            for (int i = 0; i < chunk.size(); i++) {
+                selectionArgs[i + 2] = chunk.get(i);
+            }
+            String selection = COLUMN_DEVICE_ADDRESS + "=? AND " + COLUMN_SESSION + "=? AND "
+                    + COLUMN_TELEPHONY_ID + "!=" + NO_TELEPHONY_ID + " AND " + COLUMN_HANDLE
+                    + " IN (" + makePlaceholders(chunk.size()) + ")";
+            try (Cursor cursor = getReadableDatabase().query(TABLE_MESSAGES,
+                    new String[]{COLUMN_HANDLE, COLUMN_TELEPHONY_ID}, selection, selectionArgs,
+                    null /* groupBy */, null /* having */, null /* orderBy */)) {
+                while (cursor.moveToNext()) {
+                    telephonyIds.put(cursor.getString(0), cursor.getLong(1));
+                }
+            }
+        }
+        return telephonyIds;
+    }
+
+    /**
+     * Returns true if a message from the same sender, with the same text and a close enough
+     * timestamp, is already stored, e.g. because it was received in an earlier session.
+     */
+    synchronized boolean containsSimilar(MapMessage message) {
+        if (mCountSimilarMessagesStatement == null) {
+            mCountSimilarMessagesStatement = getWritableDatabase().compileStatement(
+                    COUNT_SIMILAR_MESSAGES);
+        }
+        mCountSimilarMessagesStatement.bindString(1, message.getDeviceAddress());
+        mCountSimilarMessagesStatement.bindString(2, new SenderKey(message).getSubKey());
+        mCountSimilarMessagesStatement.bindLong(3,
+                message.getReceiveTime() - SIMILAR_MESSAGE_WINDOW_MS);
+        mCountSimilarMessagesStatement.bindLong(4,
+                message.getReceiveTime() + SIMILAR_MESSAGE_WINDOW_MS);
+        mCountSimilarMessagesStatement.bindString(5, message.getMessageText());
+        try {
+            return mCountSimilarMessagesStatement.simpleQueryForLong() > 0;
+        } finally {
+            mCountSimilarMessagesStatement.clearBindings();
+        }
+    }
+
+    /**
+     * Records the Telephony provider row id of a mirrored message, identified by its handle in the
+     * latest session of the device.
+     *
+     * @return false if the message is no longer stored
+     */
+    synchronized boolean setTelephonyId(String deviceAddress, String handle, long telephonyId) {
+        if (mUpdateTelephonyIdStatement == null) {
+            mUpdateTelephonyIdStatement = getWritableDatabase().compileStatement(
+                    UPDATE_TELEPHONY_ID);
+        }
+        mUpdateTelephonyIdStatement.bindLong(1, telephonyId);
+        mUpdateTelephonyIdStatement.bindString(2, deviceAddress);
+        mUpdateTelephonyIdStatement.bindString(3, handle);
+        mUpdateTelephonyIdStatement.bindLong(4, getLatestSession(deviceAddress));
+        try {
+            return mUpdateTelephonyIdStatement.executeUpdateDelete() > 0;
+        } finally {
+            mUpdateTelephonyIdStatement.clearBindings();
+        }
+    }
+
+    /**
+     * Returns the contact URIs of up to {@code limit} senders of {@code deviceAddress}, those with
+     * the most messages first, and the most recently active first among equally frequent ones.
+     */
+    synchronized List<String> getFrequentSenderUris(String deviceAddress, int limit) {
+        List<String> senderUris = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_MESSAGES,
+                new String[]{COLUMN_SENDER_URI},
+                COLUMN_DEVICE_ADDRESS + "=? AND " + COLUMN_SENDER_URI + " IS NOT NULL",
+                new String[]{deviceAddress}, COLUMN_SENDER_URI /* groupBy */, null /* having */,
+                "COUNT(*) DESC, MAX(" + COLUMN_RECEIVE_TIME + ") DESC", Integer.toString(limit))) {
+            while (cursor.moveToNext()) {
+                senderUris.add(cursor.getString(0));
+            }
+        }
+        return senderUris;
+    }
+
+    /**
+     * Removes up to {@code limit} messages of sessions that ended before {@code cutoffTime}, in
+     * one transaction.
+     *
+     * @param outMessages     receives the removed messages, without their read state, each with
+     *                        the receive time its fingerprint was added under
+     * @param outTelephonyIds receives the Telephony provider row ids of the removed messages that
+     *                        were mirrored
+     * @return the number of messages removed
+     */
+    synchronized int removeExpiredMessages(long cutoffTime, int limit,
+            List<MapMessage> outMessages, List<Long> outTelephonyIds) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            List<String> ids = new ArrayList<>();
+            try (Cursor cursor = db.rawQuery(SELECT_EXPIRED_MESSAGES + limit,
+                    new String[]{Long.toString(cutoffTime)})) {
+                while (cursor.moveToNext()) {
+                    ids.add(Long.toString(cursor.getLong(0)));
+                    if (cursor.getLong(1) != NO_TELEPHONY_ID) {
+                        outTelephonyIds.add(cursor.getLong(1));
+                    }
+                    outMessages.add(MapMessage.restore(cursor.getString(2), cursor.getString(3),
+                            cursor.getString(4), cursor.getString(5), cursor.getString(6),
+                            cursor.getLong(7), false /* isReadOnPhone */,
+                            false /* isReadOnCar */));
+                }
+            }
+            if (!ids.isEmpty()) {
+                db.delete(TABLE_MESSAGES, COLUMN_ID + " IN (" + makePlaceholders(ids.size())
+                        + ")", ids.toArray(new String[0]));
+            }
+            db.setTransactionSuccessful();
+            return ids.size();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Returns true if any message of {@code deviceAddress} is stored, in any session. */
+    synchronized boolean hasMessages(String deviceAddress) {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_MESSAGES,
+                COLUMN_DEVICE_ADDRESS + "=?", new String[]{deviceAddress}) > 0;
+    }
+
+    /** Removes ended sessions that have no messages left. */
+    synchronized void removeEmptySessions() {
+        getWritableDatabase().execSQL(DELETE_EMPTY_SESSIONS);
+    }
+
+    /** Returns the end time of the earliest ended session, or {@code null} if there is none. */
+    @Nullable
+    synchronized Long getEarliestSessionEnd() {
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT MIN(" + COLUMN_END_TIME
+                + ") FROM " + TABLE_SESSIONS, null /* selectionArgs */)) {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeStatement(mUpdateMessageStatement);
+        closeStatement(mInsertMessageStatement);
+        closeStatement(mUpdateTelephonyIdStatement);
+        closeStatement(mCountSimilarMessagesStatement);
+        closeStatement(mAdoptMessageStatement);
+        mUpdateMessageStatement = null;
+        mInsertMessageStatement = null;
+        mUpdateTelephonyIdStatement = null;
+        mCountSimilarMessagesStatement = null;
+        mAdoptMessageStatement = null;
+        mActiveSessions.clear();
+        super.close();
+    }
+
+    /**
+     * Splits {@code values} into chunks of at most {@link #MAX_IN_PARAMETERS}, each to be bound
+     * to its own {@code IN (...)} list.
+     */
+    static <T> List<List<T>> chunk(List<T> values) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int start = 0; start < values.size(); start += MAX_IN_PARAMETERS) {
+            chunks.add(values.subList(start,
+                    Math.min(start + MAX_IN_PARAMETERS, values.size())));
+        }
+        return chunks;
+    }
+
+    /** Returns a comma-separated list of {@code count} SQL parameter placeholders. */
+    static String makePlaceholders(int count) {
+        StringBuilder builder = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.toString();
+    }
+
+    private boolean adopt(MapMessage message, long session) {
+        mAdoptMessageStatement.bindString(1, message.getHandle());
+        mAdoptMessageStatement.bindLong(2, session);
+        mAdoptMessageStatement.bindString(3, message.getDeviceAddress());
+        mAdoptMessageStatement.bindString(4, new SenderKey(message).getSubKey());
+        mAdoptMessageStatement.bindLong(5, message.getReceiveTime() - SIMILAR_MESSAGE_WINDOW_MS);
+        mAdoptMessageStatement.bindLong(6, message.getReceiveTime() + SIMILAR_MESSAGE_WINDOW_MS);
+        mAdoptMessageStatement.bindString(7, message.getMessageText());
+        mAdoptMessageStatement.bindLong(8, session);
+        try {
+            return mAdoptMessageStatement.executeUpdateDelete() > 0;
+        } finally {
+            mAdoptMessageStatement.clearBindings();
+        }
+    }
+
+    private static void bindMessage(SQLiteStatement statement, MapMessage message) {
+        statement.bindString(1, new SenderKey(message).getSubKey());
+        statement.bindString(2, message.getSenderName());
+        bindStringOrNull(statement, 3, message.getSenderContactUri());
+        statement.bindString(4, message.getMessageText());
+        statement.bindLong(5, message.getReceiveTime());
+        statement.bindLong(6, message.isReadOnPhone() ? 1 : 0);
+        statement.bindLong(7, message.isReadOnCar() ? 1 : 0);
+        statement.bindString(8, message.getDeviceAddress());
+        statement.bindString(9, message.getHandle());
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index,
+            @Nullable String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void closeStatement(@Nullable SQLiteStatement statement) {
+        if (statement != null) {
+            statement.close();
+        }
+    }
+}
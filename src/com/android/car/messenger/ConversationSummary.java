@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Immutable snapshot of a conversation with one sender, as returned by
+ * {@link MessengerService.LocalBinder#getConversations()}.
+ */
+final class ConversationSummary {
+    private final SenderKey mSenderKey;
+    private final String mSenderName;
+    @Nullable
+    private final String mSenderContactUri;
+    private final long mLastActivityTime;
+    private final int mMessageCount;
+    private final int mUnreadCount;
+
+    ConversationSummary(SenderKey senderKey, String senderName, @Nullable String senderContactUri,
+            long lastActivityTime, int messageCount, int unreadCount) {
+        mSenderKey = senderKey;
+        mSenderName = senderName;
+        mSenderContactUri = senderContactUri;
+        mLastActivityTime = lastActivityTime;
+        mMessageCount = messageCount;
+        mUnreadCount = unreadCount;
+    }
+
+    /** Returns the key identifying this conversation. */
+    SenderKey getSenderKey() {
+        return mSenderKey;
+    }
+
+    String getSenderName() {
+        return mSenderName;
+    }
+
+    @Nullable
+    String getSenderContactUri() {
+        return mSenderContactUri;
+    }
+
+    /** Returns the receive time of the most recent message, in milliseconds since epoch. */
+    long getLastActivityTime() {
+        return mLastActivityTime;
+    }
+
+    int getMessageCount() {
+        return mMessageCount;
+    }
+
+    /** Returns the number of messages not yet read on the car. */
+    int getUnreadCount() {
+        return mUnreadCount;
+    }
+}
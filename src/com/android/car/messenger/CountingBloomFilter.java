@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A counting Bloom filter over 64-bit fingerprints, using 4-bit saturating counters so that
+ * entries can be removed again.
+ * <p>
+ * {@link #mightContain(long)} never returns {@code false} for a fingerprint that was added and not
+ * removed; it may return {@code true} for one that was never added. This class is not thread-safe.
+ */
+class CountingBloomFilter {
+    private static final int MAX_COUNT = 0xF;
+
+    private final int mNumCounters;
+    private final int mNumHashes;
+    // Two 4-bit counters per byte.
+    private final byte[] mCounters;
+    private int mSize;
+
+    /**
+     * @param numCounters number of counters; memory used is half of this in bytes
+     * @param numHashes number of counters touched per fingerprint
+     */
+    CountingBloomFilter(int numCounters, int numHashes) {
+        mNumCounters = numCounters;
+        mNumHashes = numHashes;
+        mCounters = new byte[(numCounters + 1) / 2];
+    }
+
+    /** Adds {@code fingerprint} to the filter. */
+    void add(long fingerprint) {
+        for (int i = 0; i < mNumHashes; i++) {
+            int index = indexOf(fingerprint, i);
+            int count = getCounter(index);
+            if (count < MAX_COUNT) {
+                setCounter(index, count + 1);
+            }
+        }
+        mSize++;
+    }
+
+    /** Removes a {@code fingerprint} previously added to the filter. */
+    void remove(long fingerprint) {
+        if (!mightContain(fingerprint)) {
+            return;
+        }
+        for (int i = 0; i < mNumHashes; i++) {
+            int index = indexOf(fingerprint, i);
+            int count = getCounter(index);
+            // A saturated counter no longer knows its real count, so it is never decremented.
+            if (count < MAX_COUNT) {
+                setCounter(index, count - 1);
+            }
+        }
+        mSize--;
+    }
+
+    /** Returns {@code false} if {@code fingerprint} was definitely not added. */
+    boolean mightContain(long fingerprint) {
+        for (int i = 0; i < mNumHashes; i++) {
+            if (getCounter(indexOf(fingerprint, i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of fingerprints in the filter. */
+    int size() {
+        return mSize;
+    }
+
+    /** Returns the expected false positive rate for the current number of fingerprints. */
+    double expectedFalsePositiveRate() {
+        double fractionZero = Math.exp(-(double) mNumHashes * mSize / mNumCounters);
+        return Math.pow(1 - fractionZero, mNumHashes);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mNumCounters);
+        out.writeInt(mNumHashes);
+        out.writeInt(mSize);
+        out.write(mCounters);
+    }
+
+    /**
+     * Reads a filter written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @throws IOException if the data is truncated or was written with different dimensions
+     */
+    void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != mNumCounters || in.readInt() != mNumHashes) {
+            throw new IOException("Bloom filter dimensions changed");
+        }
+        int size = in.readInt();
+        in.readFully(mCounters);
+        mSize = size;
+    }
+
+    // Kirsch-Mitzenmacher double hashing: index_i = h1 + i * h2.
+    private int indexOf(long fingerprint, int i) {
+        int h1 = (int) fingerprint;
+        int h2 = (int) (fingerprint >>> 32);
+        return Math.floorMod(h1 + i * h2, mNumCounters);
+    }
+
+    private int getCounter(int index) {
+        int shift = (index & 1) * 4;
+        return (mCounters[index >> 1] >> shift) & MAX_COUNT;
+    }
+
+    private void setCounter(int index, int count) {
+        int shift = (index & 1) * 4;
+        int cell = mCounters[index >> 1] & ~(MAX_COUNT << shift);
+        mCounters[index >> 1] = (byte) (cell | (count << shift));
+    }
+}
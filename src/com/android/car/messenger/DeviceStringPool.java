@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Interns strings that repeat across messages of a device session, such as device addresses,
+ * sender names and sender contact URIs, so that all messages share a single instance.
+ * <p>
+ * Each device has its own pool, which only holds weak references: an entry disappears once no
+ * message or key refers to it anymore. A device's pool is dropped entirely by
+ * {@link #release(String)}. This class is not thread-safe.
+ */
+class DeviceStringPool {
+    private final Map<String, Map<String, WeakReference<String>>> mPools = new HashMap<>();
+
+    /**
+     * Returns the canonical instance of {@code value} for the session of {@code deviceAddress}.
+     * The device address itself is interned as well, and can be obtained with
+     * {@code intern(deviceAddress, deviceAddress)}.
+     */
+    @Nullable
+    String intern(String deviceAddress, @Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        Map<String, WeakReference<String>> pool =
+                mPools.computeIfAbsent(deviceAddress, address -> new WeakHashMap<>());
+        WeakReference<String> ref = pool.get(value);
+        String canonical = (ref != null) ? ref.get() : null;
+        if (canonical == null) {
+            canonical = value;
+            pool.put(canonical, new WeakReference<>(canonical));
+        }
+        return canonical;
+    }
+
+    /** Drops the pool of {@code deviceAddress}, to be called once its session has ended. */
+    void release(String deviceAddress) {
+        mPools.remove(deviceAddress);
+    }
+
+    /**
+     * Clears the references of the pool of {@code deviceAddress}, as the garbage collector does
+     * once no message refers to the strings anymore.
+     */
+    @VisibleForTesting
+    void clearReferences(String deviceAddress) {
+        Map<String, WeakReference<String>> pool = mPools.get(deviceAddress);
+        if (pool != null) {
+            for (WeakReference<String> ref : pool.values()) {
+                ref.clear();
+            }
+        }
+    }
+
+    /** Returns the number of strings currently pooled for {@code deviceAddress}. */
+    int size(String deviceAddress) {
+        Map<String, WeakReference<String>> pool = mPools.get(deviceAddress);
+        return (pool != null) ? pool.size() : 0;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.messenger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.messenger.log.L;
+import com.bumptech.glide.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Disk LRU cache of images shown in notifications, which an {@link ImageProvider} serves by URI.
+ * There is one cache per kind of image, each with its own directory, size, encoding and
+ * authority: see {@link #getMmsAttachments(Context)} and {@link #getAvatars(Context)}.
+ * <p>
+ * Keys must match {@code [a-z0-9_-]{1,120}}. This class is thread-safe.
+ */
+class ImageCache {
+    private static final String TAG = "CM.ImageCache";
+    // Bump to discard all entries, e.g. when the encodings change.
+    private static final int CACHE_VERSION = 1;
+
+    private static ImageCache sMmsAttachments;
+    private static ImageCache sAvatars;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
+    private final String mAuthority;
+    private final String mMimeType;
+    @Nullable
+    private DiskLruCache mDiskLruCache;
+
+    /** Returns the cache of downsampled MMS images, served by {@link AttachmentProvider}. */
+    static synchronized ImageCache getMmsAttachments(Context context) {
+        if (sMmsAttachments == null) {
+            sMmsAttachments = new ImageCache(getDirectory(context, "mms_attachments"),
+                    10 * 1024 * 1024, Bitmap.CompressFormat.JPEG, 90,
+                    "com.android.car.messenger.attachments", "image/jpeg");
+        }
+        return sMmsAttachments;
+    }
+
+    /**
+     * Returns the cache of notification avatars, served by {@link AvatarProvider}. Avatars are
+     * stored losslessly, to keep the transparent corners of circular ones.
+     */
+    static synchronized ImageCache getAvatars(Context context) {
+        if (sAvatars == null) {
+            sAvatars = new ImageCache(getDirectory(context, "avatars"),
+                    2 * 1024 * 1024, Bitmap.CompressFormat.PNG, 100 /* ignored */,
+                    "com.android.car.messenger.avatars", "image/png");
+        }
+        return sAvatars;
+    }
+
+    private static File getDirectory(Context context, String name) {
+        return new File(context.getApplicationContext().getCacheDir(), name);
+    }
+
+    private ImageCache(File directory, long maxSizeBytes, Bitmap.CompressFormat format,
+            int quality, String authority, String mimeType) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mFormat = format;
+        mQuality = quality;
+        mAuthority = authority;
+        mMimeType = mimeType;
+    }
+
+    /** Returns the URI serving the image cached under {@code key}. */
+    Uri getUri(String key) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(mAuthority)
+                .appendPath(key)
+                .build();
+    }
+
+    /** Returns the MIME type of all images of this cache. */
+    String getMimeType() {
+        return mMimeType;
+    }
+
+    /** Returns the file holding the image cached under {@code key}, or {@code null}. */
+    @Nullable
+    synchronized File get(String key) {
+        try {
+            DiskLruCache.Value value = getDiskLruCache().get(key);
+            return value == null ? null : value.getFile(0);
+        } catch (IOException e) {
+            L.e(TAG, e, "Unable to read cache entry %s of %s", key, mDirectory);
+            return null;
+        }
+    }
+
+    /**
+     * Caches {@code bitmap} under {@code key}.
+     *
+     * @return whether the image could be written
+     */
+    synchronized boolean put(String key, Bitmap bitmap) {
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = getDiskLruCache().edit(key);
+            if (editor == null) {
+                // Only one edit at a time is allowed, and all edits hold this lock.
+                L.w(TAG, "Cache entry %s of %s is already being written", key, mDirectory);
+                return false;
+            }
+            File file = editor.getFile(0);
+            try (OutputStream out = new FileOutputStream(file)) {
+                bitmap.compress(mFormat, mQuality, out);
+            }
+            editor.commit();
+            return true;
+        } catch (IOException e) {
+            L.e(TAG, e, "Unable to write cache entry %s of %s", key, mDirectory);
+            return false;
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    private DiskLruCache getDiskLruCache() throws IOException {
+        if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+            mDiskLruCache = DiskLruCache.open(mDirectory, CACHE_VERSION, 1 /* valueCount */,
+                    mMaxSizeBytes);
+        }
+        return mDiskLruCache;
+    }
+}
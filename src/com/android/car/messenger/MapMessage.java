@@ -31,7 +31,15 @@ class MapMessage {
     private String mSenderName;
     @Nullable
     private String mSenderContactUri;
+    // Lazily built, see getSenderSubKey().
+    @Nullable
+    private String mSenderSubKey;
+    // Null while the text is stored in mArena.
+    @Nullable
     private String mMessageText;
+    @Nullable
+    private MessageArena mArena;
+    private long mArenaRef = MessageArena.NO_REF;
     private long mReceiveTime;
     private boolean mIsReadOnPhone;
     private boolean mIsReadOnCar;
@@ -46,6 +54,15 @@ class MapMessage {
      * @throws IllegalArgumentException if {@code intent} is missing any other required extras
      */
     public static MapMessage parseFrom(Intent intent) {
+        return parseFrom(intent, null);
+    }
+
+    /**
+     * Same as {@link #parseFrom(Intent)}, but the device address, sender name, sender contact URI
+     * and sender sub key are interned into {@code stringPool} so that messages of the same
+     * conversation share them.
+     */
+    public static MapMessage parseFrom(Intent intent, @Nullable DeviceStringPool stringPool) {
         BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
         String handle = intent.getStringExtra(BluetoothMapClient.EXTRA_MESSAGE_HANDLE);
         String senderUri = intent.getStringExtra(BluetoothMapClient.EXTRA_SENDER_CONTACT_URI);
@@ -56,8 +73,15 @@ class MapMessage {
         boolean isRead = intent.getBooleanExtra(BluetoothMapClient.EXTRA_MESSAGE_READ_STATUS,
                 false);
 
-        return new MapMessage(
-                device.getAddress(),
+        String deviceAddress = device.getAddress();
+        if (stringPool != null && deviceAddress != null) {
+            deviceAddress = stringPool.intern(deviceAddress, deviceAddress);
+            senderUri = stringPool.intern(deviceAddress, senderUri);
+            senderName = stringPool.intern(deviceAddress, senderName);
+        }
+
+        MapMessage message = new MapMessage(
+                deviceAddress,
                 handle,
                 senderName,
                 senderUri,
@@ -65,6 +89,24 @@ class MapMessage {
                 receiveTime,
                 isRead
         );
+        if (stringPool != null) {
+            message.mSenderSubKey = stringPool.intern(deviceAddress, message.getSenderSubKey());
+        }
+        return message;
+    }
+
+    /**
+     * Recreates a message previously persisted by {@link StateSnapshot}.
+     *
+     * @throws IllegalArgumentException if any required field is missing
+     */
+    static MapMessage restore(String deviceAddress, String handle, String senderName,
+            @Nullable String senderContactUri, String messageText, long receiveTime,
+            boolean isReadOnPhone, boolean isReadOnCar) {
+        MapMessage message = new MapMessage(deviceAddress, handle, senderName, senderContactUri,
+                messageText, receiveTime, isReadOnPhone);
+        message.mIsReadOnCar = isReadOnCar;
+        return message;
     }
 
     private MapMessage(String deviceAddress,
@@ -103,6 +145,18 @@ class MapMessage {
         mIsReadOnPhone = isRead;
     }
 
+    /**
+     * Returns a copy of this message whose text is kept on the heap, which is safe to hand over to
+     * other threads.
+     */
+    MapMessage copyOnHeap() {
+        MapMessage copy = new MapMessage(mDeviceAddress, mHandle, mSenderName, mSenderContactUri,
+                getMessageText(), mReceiveTime, mIsReadOnPhone);
+        copy.mIsReadOnCar = mIsReadOnCar;
+        copy.mSenderSubKey = mSenderSubKey;
+        return copy;
+    }
+
     /**
      * Returns the bluetooth address of the device from which this message was received.
      */
@@ -145,12 +199,72 @@ class MapMessage {
     }
 
     /**
-     * Returns the actual content of the message.
+     * Returns the sub key of the {@link SenderKey} of this message's sender. It is built once per
+     * message, and shared by all messages of a conversation if they were parsed with a
+     * {@link DeviceStringPool}.
+     */
+    String getSenderSubKey() {
+        if (mSenderSubKey == null) {
+            // Use a combination of senderName and senderContactUri for key. Ideally we would use
+            // only senderContactUri (which is encoded phone no.). However since some phones don't
+            // provide these, we fall back to senderName. Since senderName may not be unique, we
+            // include senderContactUri also to provide uniqueness in cases it is available.
+            mSenderSubKey = mSenderName + "/" + mSenderContactUri;
+        }
+        return mSenderSubKey;
+    }
+
+    /**
+     * Returns the actual content of the message, or {@code null} once its arena text was released.
      */
     public String getMessageText() {
+        if (mArena != null) {
+            return mArena.load(mArenaRef);
+        }
         return mMessageText;
     }
 
+    /**
+     * Moves the message text into {@code arena}, releasing the heap copy. If the arena is full the
+     * text stays on the heap.
+     *
+     * @return whether the text is stored in an arena
+     */
+    boolean moveTextToArena(MessageArena arena) {
+        if (mArena != null) {
+            return true;
+        }
+        long ref = arena.store(mMessageText);
+        if (ref != MessageArena.NO_REF) {
+            mArena = arena;
+            mArenaRef = ref;
+            mMessageText = null;
+        }
+        return mArena != null;
+    }
+
+    /**
+     * Releases the arena space held by the message text, if any. The text is no longer available
+     * afterwards, since compaction may reuse its bytes.
+     */
+    void releaseArenaText() {
+        if (mArena != null) {
+            mArena.release(mArenaRef);
+            mArena = null;
+            mArenaRef = MessageArena.NO_REF;
+        }
+    }
+
+    /** Returns the reference of the text in the arena, or {@link MessageArena#NO_REF}. */
+    long getArenaRef() {
+        return mArenaRef;
+    }
+
+    /** Updates the arena reference after the arena was compacted. */
+    void setArenaRef(long ref) {
+        mArenaRef = ref;
+    }
+
     public void markMessageAsRead() {
         mIsReadOnCar = true;
     }
@@ -174,7 +288,7 @@ class MapMessage {
         return "MapMessage{" +
                 "mDeviceAddress=" + mDeviceAddress +
                 ", mHandle='" + mHandle + '\'' +
-                ", mMessageText='" + mMessageText + '\'' +
+                ", mMessageText='" + getMessageText() + '\'' +
                 ", mSenderContactUri='" + mSenderContactUri + '\'' +
                 ", mSenderName='" + mSenderName + '\'' +
                 ", mReceiveTime=" + mReceiveTime + '\'' +
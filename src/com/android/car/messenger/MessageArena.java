@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import com.android.car.messenger.log.L;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Stores UTF-8 encoded message bodies in a single direct {@link ByteBuffer}, outside of the Java
+ * heap.
+ * <p>
+ * Callers receive a reference (see {@link #store(String)}) which packs the offset and length of
+ * the encoded bytes into a single {@code long}. Space is reclaimed by {@link #compact(Collection)},
+ * which moves all live entries to the front of the buffer. This class is not thread-safe.
+ */
+class MessageArena {
+    private static final String TAG = "CM.MessageArena";
+
+    /** Returned by {@link #store(String)} if the arena does not have enough room for the text. */
+    static final long NO_REF = -1L;
+
+    private final ByteBuffer mBuffer;
+    private int mLiveBytes;
+
+    MessageArena(int capacityBytes) {
+        mBuffer = ByteBuffer.allocateDirect(capacityBytes);
+    }
+
+    /**
+     * Encodes {@code text} into the arena.
+     *
+     * @return a reference to the stored text, or {@link #NO_REF} if the arena is full
+     */
+    long store(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > mBuffer.remaining()) {
+            L.w(TAG, "Arena full, keeping %d bytes on heap. %s", bytes.length, this);
+            return NO_REF;
+        }
+        int offset = mBuffer.position();
+        mBuffer.put(bytes);
+        mLiveBytes += bytes.length;
+        return pack(offset, bytes.length);
+    }
+
+    /** Decodes the text referenced by {@code ref}. */
+    String load(long ref) {
+        byte[] bytes = new byte[lengthOf(ref)];
+        ByteBuffer view = mBuffer.duplicate();
+        view.position(offsetOf(ref));
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Marks the bytes referenced by {@code ref} as garbage, to be reclaimed on compaction. */
+    void release(long ref) {
+        mLiveBytes -= lengthOf(ref);
+    }
+
+    /**
+     * Moves the bodies of all {@code liveMessages} stored in this arena to the front of the
+     * buffer, and updates their references. Messages not stored in this arena are ignored.
+     */
+    void compact(Collection<MapMessage> liveMessages) {
+        List<MapMessage> stored = new ArrayList<>();
+        for (MapMessage message : liveMessages) {
+            if (message.getArenaRef() != NO_REF) {
+                stored.add(message);
+            }
+        }
+        // Moving entries in offset order guarantees we never overwrite bytes not yet moved.
+        stored.sort(Comparator.comparingInt(message -> offsetOf(message.getArenaRef())));
+
+        int writePosition = 0;
+        for (MapMessage message : stored) {
+            long ref = message.getArenaRef();
+            int offset = offsetOf(ref);
+            int length = lengthOf(ref);
+            if (offset != writePosition) {
+                ByteBuffer source = mBuffer.duplicate();
+                source.position(offset).limit(offset + length);
+                ByteBuffer target = mBuffer.duplicate();
+                target.position(writePosition);
+                target.put(source);
+                message.setArenaRef(pack(writePosition, length));
+            }
+            writePosition += length;
+        }
+        mBuffer.position(writePosition);
+        mLiveBytes = writePosition;
+        L.d(TAG, "Compacted: %s", this);
+    }
+
+    /** Returns the number of bytes referenced by live messages. */
+    int getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    /** Returns the number of bytes written since the last compaction, including garbage. */
+    int getUsedBytes() {
+        return mBuffer.position();
+    }
+
+    /** Returns the total capacity of the arena in bytes. */
+    int getCapacity() {
+        return mBuffer.capacity();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MessageArena{live=%d, used=%d, capacity=%d}",
+                mLiveBytes, mBuffer.position(), mBuffer.capacity());
+    }
+
+    private static long pack(int offset, int length) {
+        return ((long) offset << 32) | (length & 0xFFFFFFFFL);
+    }
+
+    private static int offsetOf(long ref) {
+        return (int) (ref >>> 32);
+    }
+
+    private static int lengthOf(long ref) {
+        return (int) ref;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.content.Context;
+import android.util.AtomicFile;
+
+import com.android.car.messenger.log.L;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persisted, per-device {@link CountingBloomFilter}s over the content of received messages, used to
+ * recognize messages that are definitely new without querying a database.
+ * <p>
+ * MAP message handles are only unique within a session, so messages are identified by a
+ * fingerprint of their sender, body and timestamp. Timestamps are bucketed, and neighbouring
+ * buckets are probed as well, so that the same message reported with a slightly different
+ * timestamp is still considered a possible duplicate. All methods are thread-safe.
+ */
+class MessageFingerprints {
+    private static final String TAG = "CM.MessageFingerprints";
+    private static final String DIRECTORY_NAME = "fingerprints";
+    private static final int NUM_COUNTERS = 16384;
+    private static final int NUM_HASHES = 4;
+    // Matches the window SmsDatabaseHandler uses when looking for duplicates.
+    private static final long TIME_BUCKET_MS = 5000;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static MessageFingerprints sInstance;
+
+    private final File mDirectory;
+    private final Map<String, CountingBloomFilter> mFilters = new HashMap<>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private int mLookups;
+    private int mPossibleHits;
+    private int mFalsePositives;
+
+    /**
+     * Returns the fingerprints of this process, shared by the service and the compaction job, so
+     * that both work on the same filters.
+     */
+    static synchronized MessageFingerprints getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MessageFingerprints(context.getApplicationContext().getFilesDir());
+        }
+        return sInstance;
+    }
+
+    MessageFingerprints(File filesDirectory) {
+        mDirectory = new File(filesDirectory, DIRECTORY_NAME);
+    }
+
+    /**
+     * Returns {@code false} if {@code message} was definitely never added for its device. If this
+     * returns {@code true}, the caller should run a full duplicate check and report its outcome
+     * through {@link #recordDuplicateCheck(boolean)}.
+     */
+    synchronized boolean mightContain(MapMessage message) {
+        mLookups++;
+        CountingBloomFilter filter = getFilter(message.getDeviceAddress());
+        long bucket = message.getReceiveTime() / TIME_BUCKET_MS;
+        for (long b = bucket - 1; b <= bucket + 1; b++) {
+            if (filter.mightContain(fingerprint(message, b))) {
+                mPossibleHits++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Records the outcome of a full duplicate check run after a possible hit. */
+    synchronized void recordDuplicateCheck(boolean wasDuplicate) {
+        if (!wasDuplicate) {
+            mFalsePositives++;
+        }
+    }
+
+    /** Adds {@code message} to the filter of its device. */
+    synchronized void add(MapMessage message) {
+        getFilter(message.getDeviceAddress()).add(
+                fingerprint(message, message.getReceiveTime() / TIME_BUCKET_MS));
+    }
+
+    /**
+     * Removes {@code message} from the filter of its device. It must have been added, with the
+     * same receive time; see {@link ConversationStore#COLUMN_FINGERPRINT_TIME}. Removing anything
+     * else would decrement counters of other messages, causing false negatives.
+     */
+    synchronized void remove(MapMessage message) {
+        getFilter(message.getDeviceAddress()).remove(
+                fingerprint(message, message.getReceiveTime() / TIME_BUCKET_MS));
+    }
+
+    /** Empties the filter of {@code deviceAddress}, and deletes its persisted copy. */
+    synchronized void clear(String deviceAddress) {
+        mFilters.put(deviceAddress, new CountingBloomFilter(NUM_COUNTERS, NUM_HASHES));
+        AtomicFile file = getFile(deviceAddress);
+        mExecutor.execute(file::delete);
+    }
+
+    /** Persists the filters of all devices, and logs their statistics. */
+    synchronized void save() {
+        for (Map.Entry<String, CountingBloomFilter> entry : mFilters.entrySet()) {
+            save(entry.getKey(), entry.getValue());
+        }
+        L.d(TAG, "%s", this);
+    }
+
+    /** Returns the observed rate of possible hits which turned out not to be duplicates. */
+    synchronized double observedFalsePositiveRate() {
+        int definitelyNew = mLookups - mPossibleHits;
+        int negatives = definitelyNew + mFalsePositives;
+        return negatives == 0 ? 0 : (double) mFalsePositives / negatives;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder(String.format(
+                "MessageFingerprints{lookups=%d, possibleHits=%d, falsePositives=%d, "
+                        + "observedFpr=%.4f",
+                mLookups, mPossibleHits, mFalsePositives, observedFalsePositiveRate()));
+        for (Map.Entry<String, CountingBloomFilter> entry : mFilters.entrySet()) {
+            builder.append(String.format(", %s: size=%d expectedFpr=%.4f", entry.getKey(),
+                    entry.getValue().size(), entry.getValue().expectedFalsePositiveRate()));
+        }
+        return builder.append('}').toString();
+    }
+
+    private CountingBloomFilter getFilter(String deviceAddress) {
+        CountingBloomFilter filter = mFilters.get(deviceAddress);
+        if (filter == null) {
+            filter = load(deviceAddress);
+            mFilters.put(deviceAddress, filter);
+        }
+        return filter;
+    }
+
+    private CountingBloomFilter load(String deviceAddress) {
+        CountingBloomFilter filter = new CountingBloomFilter(NUM_COUNTERS, NUM_HASHES);
+        try (DataInputStream in = new DataInputStream(getFile(deviceAddress).openRead())) {
+            filter.readFrom(in);
+        } catch (FileNotFoundException e) {
+            // First session with this device.
+        } catch (IOException e) {
+            L.e(TAG, e, "Discarding unreadable fingerprints of %s", deviceAddress);
+            filter = new CountingBloomFilter(NUM_COUNTERS, NUM_HASHES);
+        }
+        return filter;
+    }
+
+    private void save(String deviceAddress, CountingBloomFilter filter) {
+        final byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            filter.writeTo(out);
+            out.flush();
+            data = bytes.toByteArray();
+        } catch (IOException e) {
+            L.e(TAG, e, "Unable to encode fingerprints of %s", deviceAddress);
+            return;
+        }
+        AtomicFile file = getFile(deviceAddress);
+        mExecutor.execute(() -> {
+            FileOutputStream out = null;
+            try {
+                mDirectory.mkdirs();
+                out = file.startWrite();
+                out.write(data);
+                file.finishWrite(out);
+            } catch (IOException e) {
+                L.e(TAG, e, "Unable to write fingerprints of %s", deviceAddress);
+                file.failWrite(out);
+            }
+        });
+    }
+
+    private AtomicFile getFile(String deviceAddress) {
+        return new AtomicFile(new File(mDirectory, deviceAddress.replace(":", "") + ".bf"));
+    }
+
+    /** 64-bit FNV-1a hash over the sender, body and time bucket of {@code message}. */
+    private static long fingerprint(MapMessage message, long timeBucket) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, message.getSenderName());
+        hash = hash(hash, message.getSenderContactUri());
+        hash = hash(hash, message.getMessageText());
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ ((timeBucket >>> (i * 8)) & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // Separator, so that ("ab", "c") and ("a", "bc") hash differently.
+        return (hash ^ 0xFF) * FNV_PRIME;
+    }
+}
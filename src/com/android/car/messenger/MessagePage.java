@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable page of the messages of a conversation, newest first, as returned by
+ * {@link MessengerService.LocalBinder#getMessages(SenderKey, String, int)}.
+ */
+final class MessagePage {
+    private final List<Message> mMessages;
+    @Nullable
+    private final String mNextPageToken;
+
+    MessagePage(List<Message> messages, @Nullable String nextPageToken) {
+        mMessages = Collections.unmodifiableList(messages);
+        mNextPageToken = nextPageToken;
+    }
+
+    /** Returns the messages of this page, newest first. */
+    List<Message> getMessages() {
+        return mMessages;
+    }
+
+    /**
+     * Returns the token to pass to get the next (older) page, or {@code null} if this is the
+     * last page.
+     */
+    @Nullable
+    String getNextPageToken() {
+        return mNextPageToken;
+    }
+
+    /**
+     * Position of a message in its conversation, ordered by receive time, then handle. Page
+     * tokens encode the position of the last message of a page, so that they stay valid when
+     * that message is removed.
+     */
+    static final class Position implements Comparable<Position> {
+        private static final char SEPARATOR = '/';
+
+        private final long mReceiveTime;
+        private final String mHandle;
+
+        Position(long receiveTime, String handle) {
+            mReceiveTime = receiveTime;
+            mHandle = handle;
+        }
+
+        Position(MapMessage message) {
+            this(message.getReceiveTime(), message.getHandle());
+        }
+
+        /**
+         * Parses a token returned by {@link #toToken()}.
+         *
+         * @throws IllegalArgumentException if {@code token} is malformed
+         */
+        static Position fromToken(String token) {
+            int separator = token.indexOf(SEPARATOR);
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid page token: " + token);
+            }
+            try {
+                return new Position(Long.parseLong(token.substring(0, separator)),
+                        token.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page token: " + token, e);
+            }
+        }
+
+        String toToken() {
+            return Long.toString(mReceiveTime) + SEPARATOR + mHandle;
+        }
+
+        @Override
+        public int compareTo(Position other) {
+            int result = Long.compare(mReceiveTime, other.mReceiveTime);
+            return result != 0 ? result : mHandle.compareTo(other.mHandle);
+        }
+    }
+
+    /** Immutable snapshot of a single message. */
+    static final class Message {
+        private final String mHandle;
+        private final String mSenderName;
+        private final String mMessageText;
+        private final long mReceiveTime;
+        private final boolean mIsRead;
+
+        Message(MapMessage message) {
+            mHandle = message.getHandle();
+            mSenderName = message.getSenderName();
+            mMessageText = message.getMessageText();
+            mReceiveTime = message.getReceiveTime();
+            mIsRead = message.isReadOnCar();
+        }
+
+        String getHandle() {
+            return mHandle;
+        }
+
+        String getSenderName() {
+            return mSenderName;
+        }
+
+        String getMessageText() {
+            return mMessageText;
+        }
+
+        long getReceiveTime() {
+            return mReceiveTime;
+        }
+
+        /** Returns {@code true} if the message was read on the car. */
+        boolean isRead() {
+            return mIsRead;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.text.TextUtils;
+
+import com.android.car.messenger.MessengerDelegate.MessageKey;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental inverted index over the text and sender names of received messages, for assistant
+ * queries such as "messages from Alex" or "messages about dinner".
+ * <p>
+ * Terms are lower-cased words; every query word matches indexed words it is a prefix of. The index
+ * holds at most a fixed number of messages, evicting the least recently indexed ones first. This
+ * class is not thread-safe.
+ */
+class MessageSearchIndex {
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final String[] NO_TERMS = new String[0];
+
+    private final int mMaxMessages;
+    private final TreeMap<String, Set<MessageKey>> mTextIndex = new TreeMap<>();
+    private final TreeMap<String, Set<MessageKey>> mSenderIndex = new TreeMap<>();
+    // Terms of each indexed message, in indexing order, needed to remove it again.
+    private final LinkedHashMap<MessageKey, IndexedTerms> mIndexedTerms = new LinkedHashMap<>();
+
+    MessageSearchIndex(int maxMessages) {
+        mMaxMessages = maxMessages;
+    }
+
+    /** Indexes {@code message}, replacing any previous entry for {@code key}. */
+    void add(MessageKey key, MapMessage message) {
+        remove(key);
+        IndexedTerms terms = new IndexedTerms(tokenize(message.getMessageText()),
+                tokenize(message.getSenderName()));
+        addTerms(mTextIndex, terms.mTextTerms, key);
+        addTerms(mSenderIndex, terms.mSenderTerms, key);
+        mIndexedTerms.put(key, terms);
+
+        if (mIndexedTerms.size() > mMaxMessages) {
+            remove(mIndexedTerms.keySet().iterator().next());
+        }
+    }
+
+    /** Removes the entry for {@code key}, if any. */
+    void remove(MessageKey key) {
+        IndexedTerms terms = mIndexedTerms.remove(key);
+        if (terms != null) {
+            removeTerms(mTextIndex, terms.mTextTerms, key);
+            removeTerms(mSenderIndex, terms.mSenderTerms, key);
+        }
+    }
+
+    /** Returns the keys of messages whose text contains all words of {@code query}. */
+    Set<MessageKey> searchText(String query) {
+        return search(mTextIndex, query);
+    }
+
+    /** Returns the keys of messages whose sender name contains all words of {@code query}. */
+    Set<MessageKey> searchSender(String query) {
+        return search(mSenderIndex, query);
+    }
+
+    /** Returns the number of indexed messages. */
+    int size() {
+        return mIndexedTerms.size();
+    }
+
+    private static Set<MessageKey> search(TreeMap<String, Set<MessageKey>> index, String query) {
+        Set<MessageKey> result = null;
+        for (String prefix : tokenize(query)) {
+            Set<MessageKey> matches = new HashSet<>();
+            SortedMap<String, Set<MessageKey>> range =
+                    index.subMap(prefix, prefix + Character.MAX_VALUE);
+            for (Set<MessageKey> keys : range.values()) {
+                matches.addAll(keys);
+            }
+            if (result == null) {
+                result = matches;
+            } else {
+                result.retainAll(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result == null ? Collections.emptySet() : result;
+    }
+
+    private static void addTerms(Map<String, Set<MessageKey>> index, String[] terms,
+            MessageKey key) {
+        for (String term : terms) {
+            index.computeIfAbsent(term, t -> new HashSet<>()).add(key);
+        }
+    }
+
+    private static void removeTerms(Map<String, Set<MessageKey>> index, String[] terms,
+            MessageKey key) {
+        for (String term : terms) {
+            Set<MessageKey> keys = index.get(term);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                index.remove(term);
+            }
+        }
+    }
+
+    private static String[] tokenize(String text) {
+        if (TextUtils.isEmpty(text)) {
+            return NO_TERMS;
+        }
+        Set<String> terms = new HashSet<>();
+        for (String word : WORD_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (!word.isEmpty()) {
+                terms.add(word);
+            }
+        }
+        return terms.toArray(NO_TERMS);
+    }
+
+    private static class IndexedTerms {
+        final String[] mTextTerms;
+        final String[] mSenderTerms;
+
+        IndexedTerms(String[] textTerms, String[] senderTerms) {
+            mTextTerms = textTerms;
+            mSenderTerms = senderTerms;
+        }
+    }
+}
@@ -8,16 +8,15 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothMapClient;
 import android.bluetooth.BluetoothProfile;
-import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources.NotFoundException;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Icon;
 import android.net.Uri;
-import android.provider.ContactsContract;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.widget.Toast;
 
@@ -28,6 +27,7 @@ import androidx.core.app.NotificationCompat.Action;
 import androidx.core.app.NotificationCompat.MessagingStyle;
 import androidx.core.app.Person;
 import androidx.core.app.RemoteInput;
+import androidx.core.graphics.drawable.IconCompat;
 
 import com.android.car.apps.common.LetterTileDrawable;
 import com.android.car.messenger.bluetooth.BluetoothHelper;
@@ -35,16 +35,19 @@ import com.android.car.messenger.bluetooth.BluetoothMonitor;
 import com.android.car.messenger.log.L;
 import com.android.internal.annotations.GuardedBy;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.request.RequestOptions;
-import com.bumptech.glide.request.target.SimpleTarget;
-import com.bumptech.glide.request.transition.Transition;
-
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 /** Delegate class responsible for handling messaging service actions */
@@ -53,13 +56,58 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
     // Static user name for building a MessagingStyle.
     private static final String STATIC_USER_NAME = "STATIC_USER_NAME";
     private static final Object mMapClientLock = new Object();
+    // Delay used to batch state changes into a single snapshot write.
+    private static final long STATE_SAVE_DELAY_MS = 2000;
+    private static final int DEFAULT_MAX_INDEXED_MESSAGES = 1000;
+    private static final int DEFAULT_NOTIFICATION_UPDATES_PER_SECOND = 5;
+    private static final int DEFAULT_MAX_NOTIFICATION_MESSAGES = 10;
+    private static final int DEFAULT_MAX_NOTIFICATION_TEXT_BYTES = 16 * 1024;
+    private static final int DEFAULT_MAX_NOTIFICATION_MESSAGE_BYTES = 4 * 1024;
+    private static final int DEFAULT_NOTIFICATION_GROUP_THRESHOLD = 4;
+    private static final int DEFAULT_MAP_RECONNECT_GRACE_MS = 10000;
+    // Conversations listed in a group summary; the count covers the others.
+    private static final int MAX_SUMMARY_LINES = 5;
+    // Largest page returned by getMessages.
+    static final int MAX_PAGE_SIZE = 100;
 
     private final Context mContext;
     @GuardedBy("mMapClientLock")
     private BluetoothMapClient mBluetoothMapClient;
     private NotificationManager mNotificationManager;
+    private final NotificationRenderer mNotificationRenderer;
+    private final NotificationScheduler mNotificationScheduler;
+    private final NotificationPayloadBudget mPayloadBudget;
+    private final NotificationGroups mNotificationGroups;
+    private final ConversationStore mConversationStore;
     private final SmsDatabaseHandler mSmsDatabaseHandler;
     private boolean mShouldLoadExistingMessages;
+    // Whether avatars are referenced by AvatarProvider URI instead of parceled as bitmaps.
+    private final boolean mAvatarsAsContentUris;
+    // Holds message bodies off-heap when enabled via config_storeMessagesInArena, else null.
+    @Nullable
+    private final MessageArena mMessageArena;
+    // Shares repeated identifiers between messages and keys of a device session.
+    private final DeviceStringPool mStringPool = new DeviceStringPool();
+    private final StateSnapshot mStateSnapshot;
+    private final MessageFingerprints mMessageFingerprints;
+    private final MessageSearchIndex mSearchIndex;
+    private final MmsAttachmentPipeline mMmsAttachmentPipeline;
+    private final ContactIndex mContactIndex;
+    private final ContactPhotoPrefetcher mContactPhotoPrefetcher;
+    private final AvatarLoader mAvatarLoader;
+    private final RecipientIndex mRecipientIndex;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSaveStateRunnable = this::saveState;
+    private final Runnable mMapGraceExpiredRunnable = this::onMapGraceExpired;
+    // How long state is kept after MAP disconnects, for its devices to come back.
+    private final int mMapReconnectGraceMs;
+    // Devices connected when MAP disconnected, and not back yet; kept during the grace period.
+    private final Set<String> mMapGraceDeviceAddresses = new HashSet<>();
+    private boolean mInMapGracePeriod;
+    // Devices whose state was restored from a snapshot, and not yet confirmed as connected.
+    private final Set<String> mRestoredDeviceAddresses = new HashSet<>();
+    @Nullable
+    private final StartupMetrics mStartupMetrics;
 
     @VisibleForTesting
     final Map<MessageKey, MapMessage> mMessages = new HashMap<>();
@@ -71,11 +119,30 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
     final Map<String, Long> mBTDeviceAddressToConnectionTimestamp = new HashMap<>();
 
     public MessengerDelegate(Context context) {
+        this(context, null, new ContactIndex(context), new StateSnapshot(context.getFilesDir()));
+    }
+
+    /**
+     * Creates a delegate using a {@code contactIndex} and {@code stateSnapshot} that may already
+     * be loading in the background.
+     */
+    MessengerDelegate(Context context, @Nullable StartupMetrics startupMetrics,
+            ContactIndex contactIndex, StateSnapshot stateSnapshot) {
         mContext = context;
+        mStartupMetrics = startupMetrics;
 
         mNotificationManager =
                 (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
-        mSmsDatabaseHandler = new SmsDatabaseHandler(mContext);
+        mConversationStore = ConversationStore.getInstance(mContext);
+        mContactIndex = contactIndex;
+        mRecipientIndex = new RecipientIndex(ContactIndex.getCountryIso(mContext));
+        mSmsDatabaseHandler = new SmsDatabaseHandler(mContext, mConversationStore, mContactIndex);
+        mStateSnapshot = stateSnapshot;
+        mMessageFingerprints = MessageFingerprints.getInstance(mContext);
+        mMmsAttachmentPipeline = new MmsAttachmentPipeline(mContext, this::onMmsImagesLoaded);
+        mContactPhotoPrefetcher = new ContactPhotoPrefetcher(mContext, mConversationStore,
+                mContactIndex);
+        mAvatarLoader = new AvatarLoader(mContext);
 
         try {
             mShouldLoadExistingMessages =
@@ -85,25 +152,149 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
             L.e(TAG, e, "Disabling loading of existing messages");
             mShouldLoadExistingMessages = false;
         }
+        boolean avatarsAsContentUris;
+        try {
+            avatarsAsContentUris =
+                    mContext.getResources().getBoolean(R.bool.config_avatarsAsContentUris);
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests;
+            L.e(TAG, e, "Parceling avatars as bitmaps");
+            avatarsAsContentUris = false;
+        }
+        mAvatarsAsContentUris = avatarsAsContentUris;
+        mMessageArena = createMessageArena();
+
+        int maxIndexedMessages;
+        try {
+            maxIndexedMessages =
+                    mContext.getResources().getInteger(R.integer.config_maxIndexedMessages);
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests;
+            L.e(TAG, e, "Using default search index size");
+            maxIndexedMessages = DEFAULT_MAX_INDEXED_MESSAGES;
+        }
+        mSearchIndex = new MessageSearchIndex(maxIndexedMessages);
+
+        int notificationUpdatesPerSecond;
+        try {
+            notificationUpdatesPerSecond = mContext.getResources().getInteger(
+                    R.integer.config_notificationUpdatesPerSecond);
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests;
+            L.e(TAG, e, "Using default notification update rate");
+            notificationUpdatesPerSecond = DEFAULT_NOTIFICATION_UPDATES_PER_SECOND;
+        }
+        mPayloadBudget = createPayloadBudget();
+
+        int notificationGroupThreshold;
+        try {
+            notificationGroupThreshold = mContext.getResources().getInteger(
+                    R.integer.config_notificationGroupThreshold);
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests;
+            L.e(TAG, e, "Using default notification group threshold");
+            notificationGroupThreshold = DEFAULT_NOTIFICATION_GROUP_THRESHOLD;
+        }
+        mNotificationGroups = new NotificationGroups(notificationGroupThreshold);
+
+        int mapReconnectGraceMs;
+        try {
+            mapReconnectGraceMs = mContext.getResources().getInteger(
+                    R.integer.config_mapReconnectGraceMs);
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests;
+            L.e(TAG, e, "Using default MAP reconnect grace period");
+            mapReconnectGraceMs = DEFAULT_MAP_RECONNECT_GRACE_MS;
+        }
+        mMapReconnectGraceMs = mapReconnectGraceMs;
+        mNotificationRenderer = new NotificationRenderer(mNotificationManager);
+        mNotificationScheduler = new NotificationScheduler(mNotificationRenderer, mHandler,
+                notificationUpdatesPerSecond);
+    }
+
+    private NotificationPayloadBudget createPayloadBudget() {
+        try {
+            return new NotificationPayloadBudget(
+                    mContext.getResources().getInteger(R.integer.config_maxNotificationMessages),
+                    mContext.getResources().getInteger(R.integer.config_maxNotificationTextBytes),
+                    mContext.getResources().getInteger(
+                            R.integer.config_maxNotificationMessageBytes));
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests;
+            L.e(TAG, e, "Using default notification payload budget");
+            return new NotificationPayloadBudget(DEFAULT_MAX_NOTIFICATION_MESSAGES,
+                    DEFAULT_MAX_NOTIFICATION_TEXT_BYTES, DEFAULT_MAX_NOTIFICATION_MESSAGE_BYTES);
+        }
+    }
+
+    @Nullable
+    private MessageArena createMessageArena() {
+        try {
+            if (mContext.getResources().getBoolean(R.bool.config_storeMessagesInArena)) {
+                return new MessageArena(
+                        mContext.getResources().getInteger(R.integer.config_messageArenaSizeBytes));
+            }
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests;
+            L.e(TAG, e, "Disabling message arena");
+        }
+        return null;
     }
 
     @Override
     public void onMessageReceived(Intent intent) {
+        if (mStartupMetrics != null) {
+            mStartupMetrics.markMessageReceived();
+        }
         try {
-            MapMessage message = MapMessage.parseFrom(intent);
+            MapMessage message = MapMessage.parseFrom(intent, mStringPool);
 
             MessageKey messageKey = new MessageKey(message);
-            boolean repeatMessage = mMessages.containsKey(messageKey);
-            mMessages.put(messageKey, message);
+            MapMessage previousMessage = mMessages.put(messageKey, message);
+            boolean repeatMessage = (previousMessage != null);
+            if (repeatMessage) {
+                previousMessage.releaseArenaText();
+            }
+            // After releasing the repeated text, so that compaction can reclaim it.
+            moveTextToArena(message);
+            mSearchIndex.add(messageKey, message);
+            notifyConversationsChanged();
             if (!repeatMessage) {
-                mSmsDatabaseHandler.addOrUpdate(message);
+                // Handles are only unique per session; look for copies from earlier sessions,
+                // running the full check only if the fingerprint filter can't rule them out.
+                boolean knownNew = !mMessageFingerprints.mightContain(message);
+                boolean seenBefore = !knownNew && mConversationStore.containsSimilar(message);
+                if (!knownNew) {
+                    mMessageFingerprints.recordDuplicateCheck(seenBefore);
+                }
+                if (mConversationStore.addOrUpdate(message)) {
+                    mMessageFingerprints.add(message);
+                }
+                if (!seenBefore) {
+                    mSmsDatabaseHandler.addOrUpdate(message, knownNew);
+                }
                 updateNotification(messageKey, message);
+                scheduleStateSave();
             }
         } catch (IllegalArgumentException e) {
             L.e(TAG, e, "Dropping invalid MAP message.");
         }
     }
 
+    /** Adds the images of a received MMS message to the conversation with its sender, if any. */
+    private void onMmsImagesLoaded(String senderAddress, long receiveTime, List<Uri> imageUris) {
+        SenderKey senderKey = mRecipientIndex.lookup(senderAddress);
+        NotificationInfo info = senderKey != null ? mNotificationInfos.get(senderKey) : null;
+        if (info == null) {
+            L.d(TAG, "No conversation to show MMS images of %s in", senderAddress);
+            return;
+        }
+        for (Uri imageUri : imageUris) {
+            info.mImageAttachments.add(new ImageAttachment(imageUri, receiveTime));
+        }
+        updateNotification(senderKey, info);
+    }
+
     @Override
     public void onMessageSent(Intent intent) {
         /* NO-OP */
@@ -111,8 +302,22 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
 
     @Override
     public void onDeviceConnected(BluetoothDevice device) {
-        L.d(TAG, "Device connected: \t%s", device.getAddress());
-        mBTDeviceAddressToConnectionTimestamp.put(device.getAddress(), System.currentTimeMillis());
+        if (mMapGraceDeviceAddresses.remove(device.getAddress())) {
+            // Back within the grace period: its state was kept, and messages received since
+            // the original connection still get notifications.
+            L.d(TAG, "Device resumed: \t%s", device.getAddress());
+            mBTDeviceAddressToConnectionTimestamp.putIfAbsent(device.getAddress(),
+                    System.currentTimeMillis());
+        } else {
+            L.d(TAG, "Device connected: \t%s", device.getAddress());
+            mBTDeviceAddressToConnectionTimestamp.put(device.getAddress(),
+                    System.currentTimeMillis());
+        }
+        mRestoredDeviceAddresses.remove(device.getAddress());
+        // Messages received again in this session take over their rows from earlier ones.
+        mConversationStore.getActiveSession(device.getAddress());
+        scheduleStateSave();
+        mContactPhotoPrefetcher.prefetch(device.getAddress());
         synchronized (mMapClientLock) {
             if (mBluetoothMapClient != null) {
                 if (mShouldLoadExistingMessages) {
@@ -129,9 +334,19 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
     @Override
     public void onDeviceDisconnected(BluetoothDevice device) {
         L.d(TAG, "Device disconnected: \t%s", device.getAddress());
-        cleanupMessagesAndNotifications(key -> key.matches(device.getAddress()));
-        mBTDeviceAddressToConnectionTimestamp.remove(device.getAddress());
-        mSmsDatabaseHandler.removeMessagesForDevice(device.getAddress());
+        dropDevice(device.getAddress());
+    }
+
+    /** Drops the in-memory state and notifications of a device, and ends its session. */
+    private void dropDevice(String deviceAddress) {
+        mMapGraceDeviceAddresses.remove(deviceAddress);
+        cleanupMessagesAndNotifications(key -> key.matches(deviceAddress));
+        mBTDeviceAddressToConnectionTimestamp.remove(deviceAddress);
+        // Stored messages and their fingerprints are kept in case the device comes back soon.
+        mConversationStore.endSession(deviceAddress, System.currentTimeMillis());
+        mSmsDatabaseHandler.clearThreadIds();
+        CompactionJobService.schedule(mContext);
+        mStringPool.release(deviceAddress);
     }
 
     @Override
@@ -149,16 +364,27 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
             mBluetoothMapClient = client;
             connectedDevices = mBluetoothMapClient.getConnectedDevices();
         }
+        boolean wasInMapGracePeriod = mInMapGracePeriod;
+        mHandler.removeCallbacks(mMapGraceExpiredRunnable);
+        mInMapGracePeriod = false;
+        dropRestoredStateOfDisconnectedDevices(connectedDevices);
         if (connectedDevices != null) {
             for (BluetoothDevice device : connectedDevices) {
                 onDeviceConnected(device);
             }
         }
+        if (wasInMapGracePeriod) {
+            // Devices that came back were resumed; only those that didn't are dropped.
+            L.d(TAG, "MAP reconnected within grace period, %d devices did not return",
+                    mMapGraceDeviceAddresses.size());
+            for (String deviceAddress : new ArrayList<>(mMapGraceDeviceAddresses)) {
+                dropDevice(deviceAddress);
+            }
+        }
     }
 
     @Override
     public void onMapDisconnected(int profile) {
-        cleanupMessagesAndNotifications(key -> true);
         synchronized (mMapClientLock) {
             BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
             if (adapter != null) {
@@ -166,6 +392,30 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
             }
             mBluetoothMapClient = null;
         }
+        if (mMapReconnectGraceMs <= 0) {
+            onMapGraceExpired();
+            return;
+        }
+        // Brief drops are common; keep state and notifications for the devices to come back.
+        mMapGraceDeviceAddresses.addAll(mBTDeviceAddressToConnectionTimestamp.keySet());
+        mInMapGracePeriod = true;
+        mHandler.removeCallbacks(mMapGraceExpiredRunnable);
+        mHandler.postDelayed(mMapGraceExpiredRunnable, mMapReconnectGraceMs);
+    }
+
+    private void onMapGraceExpired() {
+        L.d(TAG, "MAP did not reconnect within %d ms, dropping state", mMapReconnectGraceMs);
+        mInMapGracePeriod = false;
+        mMapGraceDeviceAddresses.clear();
+        cleanupMessagesAndNotifications(key -> true);
+        mBTDeviceAddressToConnectionTimestamp.clear();
+        mConversationStore.endSessionsExcept(Collections.emptySet(), System.currentTimeMillis());
+        mSmsDatabaseHandler.clearThreadIds();
+        CompactionJobService.schedule(mContext);
+        // Nothing is left to restore, and a pending save may not get to run before the process
+        // is killed.
+        mHandler.removeCallbacks(mSaveStateRunnable);
+        mStateSnapshot.clear();
     }
 
     @Override
@@ -174,34 +424,62 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
     }
 
     protected void sendMessage(SenderKey senderKey, String messageText) {
+        Uri recipientUri = null;
+        NotificationInfo notificationInfo = mNotificationInfos.get(senderKey);
+        if (notificationInfo == null) {
+            L.w(TAG, "No notificationInfo found for senderKey: %s", senderKey);
+        } else if (notificationInfo.mSenderContactUri == null) {
+            L.w(TAG, "Do not have contact URI for sender!");
+        } else {
+            recipientUri = Uri.parse(notificationInfo.mSenderContactUri);
+        }
+        sendMessage(senderKey.getDeviceAddress(), recipientUri, messageText,
+                senderKey.hashCode());
+    }
+
+    /**
+     * Replies to {@code recipient}, e.g. a caller declined with a text message, through the
+     * device of its active conversation. Without one, the reply goes through the only connected
+     * device, if there is exactly one.
+     */
+    void respondViaMessage(String recipient, String messageText) {
+        SenderKey senderKey = mRecipientIndex.lookup(recipient);
+        if (senderKey != null) {
+            sendMessage(senderKey, messageText);
+        } else if (mBTDeviceAddressToConnectionTimestamp.size() == 1) {
+            String deviceAddress =
+                    mBTDeviceAddressToConnectionTimestamp.keySet().iterator().next();
+            Uri recipientUri = Uri.fromParts("tel", ContactIndex.toPhoneNumber(recipient), null);
+            sendMessage(deviceAddress, recipientUri, messageText, recipient.hashCode());
+        } else {
+            L.w(TAG, "No device to respond to %s from, %d connected", recipient,
+                    mBTDeviceAddressToConnectionTimestamp.size());
+            Toast.makeText(mContext, R.string.auto_reply_failed_message, Toast.LENGTH_SHORT)
+                    .show();
+        }
+    }
+
+    private void sendMessage(String deviceAddress, @Nullable Uri recipientUri, String messageText,
+            int requestCode) {
         boolean success = false;
         // Even if the device is not connected, try anyway so that the reply in enqueued.
         synchronized (mMapClientLock) {
-            if (mBluetoothMapClient != null) {
-                NotificationInfo notificationInfo = mNotificationInfos.get(senderKey);
-                if (notificationInfo == null) {
-                    L.w(TAG, "No notificationInfo found for senderKey: %s", senderKey);
-                } else if (notificationInfo.mSenderContactUri == null) {
-                    L.w(TAG, "Do not have contact URI for sender!");
-                } else {
-                    Uri[] recipientUris = {Uri.parse(notificationInfo.mSenderContactUri)};
-
-                    final int requestCode = senderKey.hashCode();
-
-                    Intent intent = new Intent(BluetoothMapClient.ACTION_MESSAGE_SENT_SUCCESSFULLY);
-                    PendingIntent sentIntent = PendingIntent.getBroadcast(mContext, requestCode,
-                            intent,
-                            PendingIntent.FLAG_ONE_SHOT);
-
-                    success = BluetoothHelper.sendMessage(mBluetoothMapClient,
-                            senderKey.getDeviceAddress(), recipientUris, messageText,
-                            sentIntent, null);
-                }
+            if (mBluetoothMapClient != null && recipientUri != null) {
+                Uri[] recipientUris = {recipientUri};
+
+                Intent intent = new Intent(BluetoothMapClient.ACTION_MESSAGE_SENT_SUCCESSFULLY);
+                PendingIntent sentIntent = PendingIntent.getBroadcast(mContext, requestCode,
+                        intent,
+                        PendingIntent.FLAG_ONE_SHOT);
+
+                success = BluetoothHelper.sendMessage(mBluetoothMapClient,
+                        deviceAddress, recipientUris, messageText,
+                        sentIntent, null);
             }
         }
 
         final boolean deviceConnected = mBTDeviceAddressToConnectionTimestamp.containsKey(
-                senderKey.getDeviceAddress());
+                deviceAddress);
         if (!success || !deviceConnected) {
             L.e(TAG, "Unable to send reply!");
             final int toastResource = deviceConnected
@@ -212,13 +490,61 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
         }
     }
 
+    /**
+     * Marks all messages of a conversation as read with one batched write per store, and cancels
+     * its notification since there is nothing unread left to show.
+     */
     protected void markAsRead(SenderKey senderKey) {
-        NotificationInfo info = mNotificationInfos.get(senderKey);
-        for (MessageKey key : info.mMessageKeys) {
-            MapMessage message = mMessages.get(key);
-            if (!message.isReadOnCar()) {
-                message.markMessageAsRead();
-                mSmsDatabaseHandler.addOrUpdate(message);
+        markAsRead(Collections.singletonList(senderKey));
+    }
+
+    /**
+     * Same as {@link #markAsRead(SenderKey)} for several conversations, e.g. all those of a
+     * notification group, with one batched write per store and device.
+     */
+    protected void markAsRead(Collection<SenderKey> senderKeys) {
+        Map<String, List<MapMessage>> newlyReadByDevice = new HashMap<>();
+        for (SenderKey senderKey : senderKeys) {
+            NotificationInfo info = mNotificationInfos.get(senderKey);
+            if (info == null) {
+                L.w(TAG, "No notificationInfo found for senderKey: %s", senderKey);
+                continue;
+            }
+            for (MessageKey key : info.mMessageKeys) {
+                MapMessage message = mMessages.get(key);
+                if (!message.isReadOnCar()) {
+                    message.markMessageAsRead();
+                    newlyReadByDevice.computeIfAbsent(senderKey.getDeviceAddress(),
+                            address -> new ArrayList<>()).add(message);
+                }
+            }
+            cancelNotification(senderKey, info);
+            info.mImageAttachments.clear();
+        }
+        if (newlyReadByDevice.isEmpty()) {
+            return;
+        }
+        newlyReadByDevice.forEach((deviceAddress, newlyRead) -> {
+            List<String> handles = new ArrayList<>(newlyRead.size());
+            for (MapMessage message : newlyRead) {
+                handles.add(message.getHandle());
+            }
+            mConversationStore.markAsRead(deviceAddress, handles);
+            mSmsDatabaseHandler.markAsRead(deviceAddress, newlyRead);
+        });
+        notifyConversationsChanged();
+        scheduleStateSave();
+    }
+
+    /**
+     * Cancels the notifications of {@code senderKeys}, keeping their conversations, e.g. when the
+     * user swipes them away.
+     */
+    protected void clearNotifications(Collection<SenderKey> senderKeys) {
+        for (SenderKey senderKey : senderKeys) {
+            NotificationInfo info = mNotificationInfos.get(senderKey);
+            if (info != null) {
+                cancelNotification(senderKey, info);
             }
         }
     }
@@ -231,22 +557,249 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
     protected void clearNotifications(Predicate<CompositeKey> predicate) {
         mNotificationInfos.forEach((senderKey, notificationInfo) -> {
             if (predicate.test(senderKey)) {
-                mNotificationManager.cancel(notificationInfo.mNotificationId);
+                cancelNotification(senderKey, notificationInfo);
             }
         });
     }
 
-    /** Removes all messages related to the inputted predicate, and cancels their notifications. **/
+    /**
+     * Removes all messages related to the inputted predicate from memory, and cancels their
+     * notifications. Stored messages are kept until the {@link CompactionJobService} expires them.
+     */
     private void cleanupMessagesAndNotifications(Predicate<CompositeKey> predicate) {
-        for (MessageKey key : mMessages.keySet()) {
-            if (predicate.test(key)) {
-                mSmsDatabaseHandler.removeMessagesForDevice(key.getDeviceAddress());
+        // First, while the summaries of their groups can still read the messages.
+        clearNotifications(predicate);
+        mMessages.entrySet().removeIf(messageKeyMapMessageEntry -> {
+            if (predicate.test(messageKeyMapMessageEntry.getKey())) {
+                messageKeyMapMessageEntry.getValue().releaseArenaText();
+                mSearchIndex.remove(messageKeyMapMessageEntry.getKey());
+                return true;
             }
+            return false;
+        });
+        mNotificationInfos.entrySet().removeIf(entry -> {
+            if (predicate.test(entry.getKey())) {
+                mRecipientIndex.remove(entry.getValue().mSenderContactUri, entry.getKey());
+                return true;
+            }
+            return false;
+        });
+        if (mMessageArena != null) {
+            mMessageArena.compact(mMessages.values());
+            L.d(TAG, "Message arena occupancy after cleanup: %s", mMessageArena);
+        }
+        notifyConversationsChanged();
+        scheduleStateSave();
+    }
+
+    /**
+     * Moves the text of {@code message}, already in {@link #mMessages}, into the message arena if
+     * enabled. If the arena is full but holds released texts, it is compacted first.
+     */
+    private void moveTextToArena(MapMessage message) {
+        if (mMessageArena == null || message.moveTextToArena(mMessageArena)) {
+            return;
+        }
+        if (mMessageArena.getLiveBytes() < mMessageArena.getUsedBytes()) {
+            mMessageArena.compact(mMessages.values());
+            message.moveTextToArena(mMessageArena);
         }
-        mMessages.entrySet().removeIf(
-                messageKeyMapMessageEntry -> predicate.test(messageKeyMapMessageEntry.getKey()));
-        clearNotifications(predicate);
-        mNotificationInfos.entrySet().removeIf(entry -> predicate.test(entry.getKey()));
+    }
+
+    /**
+     * Returns snapshots of the messages whose text contains all words of {@code query}, newest
+     * first.
+     */
+    List<MessagePage.Message> searchMessages(String query) {
+        return getMessagesNewestFirst(mSearchIndex.searchText(query));
+    }
+
+    /**
+     * Returns snapshots of the messages whose sender name contains all words of {@code query},
+     * newest first.
+     */
+    List<MessagePage.Message> searchMessagesBySender(String query) {
+        return getMessagesNewestFirst(mSearchIndex.searchSender(query));
+    }
+
+    /** Returns a snapshot of all conversations, most recently active first. */
+    List<ConversationSummary> getConversations() {
+        List<ConversationSummary> conversations = new ArrayList<>(mNotificationInfos.size());
+        mNotificationInfos.forEach((senderKey, info) -> {
+            if (info.mMessageKeys.isEmpty()) {
+                return;
+            }
+            conversations.add(new ConversationSummary(senderKey, info.mSenderName,
+                    info.mSenderContactUri, getLastActivityTime(info),
+                    info.mMessageKeys.size(), getUnreadCount(info)));
+        });
+        conversations.sort((a, b) ->
+                Long.compare(b.getLastActivityTime(), a.getLastActivityTime()));
+        return conversations;
+    }
+
+    private long getLastActivityTime(NotificationInfo info) {
+        return mMessages.get(info.mMessageKeys.getLast()).getReceiveTime();
+    }
+
+    private int getUnreadCount(NotificationInfo info) {
+        int unreadCount = 0;
+        for (MessageKey key : info.mMessageKeys) {
+            if (!mMessages.get(key).isReadOnCar()) {
+                unreadCount++;
+            }
+        }
+        return unreadCount;
+    }
+
+    /**
+     * Returns up to {@code pageSize} messages of the conversation with {@code senderKey}, newest
+     * first, starting after the position encoded in {@code pageToken}. Only the returned
+     * messages are copied.
+     *
+     * @param pageToken {@code null} for the first page, else the token of the previous page
+     * @param pageSize  maximum number of messages, clamped to [1, {@link #MAX_PAGE_SIZE}]
+     * @throws IllegalArgumentException if {@code pageToken} is malformed
+     */
+    MessagePage getMessages(SenderKey senderKey, @Nullable String pageToken, int pageSize) {
+        NotificationInfo info = mNotificationInfos.get(senderKey);
+        if (info == null) {
+            return new MessagePage(new ArrayList<>(), null);
+        }
+        // The token's message may have been removed since; its position is still valid.
+        NavigableMap<MessagePage.Position, MessageKey> older = pageToken == null
+                ? info.mMessageKeysByPosition
+                : info.mMessageKeysByPosition.headMap(MessagePage.Position.fromToken(pageToken),
+                        false /* inclusive */);
+        Iterator<MessageKey> iterator = older.descendingMap().values().iterator();
+        int maxSize = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        List<MessagePage.Message> messages = new ArrayList<>();
+        while (iterator.hasNext() && messages.size() < maxSize) {
+            messages.add(new MessagePage.Message(mMessages.get(iterator.next())));
+        }
+        String nextPageToken = null;
+        if (iterator.hasNext() && !messages.isEmpty()) {
+            MessagePage.Message last = messages.get(messages.size() - 1);
+            nextPageToken = new MessagePage.Position(last.getReceiveTime(), last.getHandle())
+                    .toToken();
+        }
+        return new MessagePage(messages, nextPageToken);
+    }
+
+    /**
+     * Returns {@code projection} applied to each message of the conversation with
+     * {@code senderKey}, newest first. Messages change after this returns, so {@code projection}
+     * must copy the values it keeps.
+     */
+    <T> List<T> projectMessages(SenderKey senderKey, Function<MapMessage, T> projection) {
+        NotificationInfo info = mNotificationInfos.get(senderKey);
+        if (info == null) {
+            return new ArrayList<>();
+        }
+        List<T> rows = new ArrayList<>(info.mMessageKeysByPosition.size());
+        for (MessageKey key : info.mMessageKeysByPosition.descendingMap().values()) {
+            rows.add(projection.apply(mMessages.get(key)));
+        }
+        return rows;
+    }
+
+    private List<MessagePage.Message> getMessagesNewestFirst(Set<MessageKey> keys) {
+        List<MessagePage.Message> messages = new ArrayList<>(keys.size());
+        for (MessageKey key : keys) {
+            MapMessage message = mMessages.get(key);
+            if (message != null) {
+                messages.add(new MessagePage.Message(message));
+            }
+        }
+        messages.sort((a, b) -> Long.compare(b.getReceiveTime(), a.getReceiveTime()));
+        return messages;
+    }
+
+    /** Writes a snapshot of the current state, to be restored if the process is killed. */
+    protected void saveState() {
+        mHandler.removeCallbacks(mSaveStateRunnable);
+        mStateSnapshot.save(mBTDeviceAddressToConnectionTimestamp, mMessages, mNotificationInfos);
+        mMessageFingerprints.save();
+    }
+
+    /**
+     * Restores the state saved by a previous instance of the service, so that notifications it
+     * posted can still be marked as read or replied to.
+     */
+    protected void restoreState() {
+        restoreState(mStateSnapshot.read());
+    }
+
+    /**
+     * Restores {@code contents}, read from the {@link StateSnapshot} beforehand.
+     *
+     * @param contents the contents of the snapshot, or {@code null} if there is none
+     */
+    void restoreState(@Nullable StateSnapshot.Contents contents) {
+        if (contents == null) {
+            return;
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        contents.replay(new StateSnapshot.Callback() {
+            @Override
+            public void onConnectionTimestamp(String deviceAddress, long timestamp) {
+                mBTDeviceAddressToConnectionTimestamp.putIfAbsent(deviceAddress, timestamp);
+                mRestoredDeviceAddresses.add(deviceAddress);
+            }
+
+            @Override
+            public void onMessage(MapMessage message) {
+                MessageKey key = new MessageKey(message);
+                if (mMessages.putIfAbsent(key, message) == null) {
+                    moveTextToArena(message);
+                    mSearchIndex.add(key, message);
+                }
+            }
+
+            @Override
+            public void onNotificationInfo(SenderKey senderKey, NotificationInfo info) {
+                info.retainMessageKeys(mMessages);
+                if (!info.mMessageKeys.isEmpty()
+                        && mNotificationInfos.putIfAbsent(senderKey, info) == null) {
+                    mRecipientIndex.put(info.mSenderContactUri, senderKey);
+                }
+            }
+        });
+        L.d(TAG, "Restored %d messages, %d conversations in %d ms", mMessages.size(),
+                mNotificationInfos.size(), SystemClock.elapsedRealtime() - startTime);
+        notifyConversationsChanged();
+    }
+
+    private void scheduleStateSave() {
+        mHandler.removeCallbacks(mSaveStateRunnable);
+        mHandler.postDelayed(mSaveStateRunnable, STATE_SAVE_DELAY_MS);
+    }
+
+    /** Tells observers of {@link ConversationProvider} that conversations have changed. */
+    private void notifyConversationsChanged() {
+        mContext.getContentResolver().notifyChange(ConversationProvider.CONTENT_URI, null);
+    }
+
+    /** Drops restored state of devices that disconnected while the service was not running. */
+    private void dropRestoredStateOfDisconnectedDevices(
+            @Nullable List<BluetoothDevice> connectedDevices) {
+        Set<String> connectedDeviceAddresses = new HashSet<>();
+        if (connectedDevices != null) {
+            for (BluetoothDevice device : connectedDevices) {
+                mRestoredDeviceAddresses.remove(device.getAddress());
+                connectedDeviceAddresses.add(device.getAddress());
+            }
+        }
+        // Sessions of devices that disconnected while the service was not running.
+        mConversationStore.endSessionsExcept(connectedDeviceAddresses,
+                System.currentTimeMillis());
+        CompactionJobService.schedule(mContext);
+        for (String deviceAddress : mRestoredDeviceAddresses) {
+            L.d(TAG, "Dropping restored state of disconnected device: %s", deviceAddress);
+            cleanupMessagesAndNotifications(key -> key.matches(deviceAddress));
+            mBTDeviceAddressToConnectionTimestamp.remove(deviceAddress);
+        }
+        mRestoredDeviceAddresses.clear();
     }
 
     private void updateNotification(MessageKey messageKey, MapMessage mapMessage) {
@@ -256,113 +809,181 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
             return;
         }
 
-        SmsDatabaseHandler.readDatabase(mContext);
+        mSmsDatabaseHandler.logRecentMessages(mContext);
         SenderKey senderKey = new SenderKey(mapMessage);
         if (!mNotificationInfos.containsKey(senderKey)) {
             mNotificationInfos.put(senderKey, new NotificationInfo(mapMessage.getSenderName(),
                     mapMessage.getSenderContactUri()));
         }
         NotificationInfo notificationInfo = mNotificationInfos.get(senderKey);
-        notificationInfo.mMessageKeys.add(messageKey);
+        notificationInfo.addMessageKey(messageKey, mapMessage);
+        // The device a sender last wrote from is the one to reply through.
+        mRecipientIndex.put(notificationInfo.mSenderContactUri, senderKey);
 
         updateNotification(senderKey, notificationInfo);
     }
 
     private void updateNotification(SenderKey senderKey, NotificationInfo notificationInfo) {
-        final Uri photoUri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI,
-                getContactId(mContext.getContentResolver(), notificationInfo.mSenderContactUri));
-
-        Glide.with(mContext)
-                .asBitmap()
-                .load(photoUri)
-                .apply(RequestOptions.circleCropTransform())
-                .into(new SimpleTarget<Bitmap>() {
-                    @Override
-                    public void onResourceReady(Bitmap bitmap,
-                            Transition<? super Bitmap> transition) {
-                        sendNotification(bitmap);
-                    }
-
-                    @Override
-                    public void onLoadFailed(@Nullable Drawable fallback) {
-                        sendNotification(null);
-                    }
-
-                    private void sendNotification(Bitmap bitmap) {
-                        mNotificationManager.notify(
-                                notificationInfo.mNotificationId,
-                                createNotification(senderKey, notificationInfo, bitmap));
-                    }
-                });
-    }
-
-    // TODO: move out to a shared library.
-    protected static int getContactId(ContentResolver cr, String contactUri) {
-        if (TextUtils.isEmpty(contactUri)) {
-            return 0;
-        }
-
-        Uri lookupUri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
-                Uri.encode(contactUri));
-        String[] projection = new String[]{ContactsContract.PhoneLookup._ID};
-
-        try (Cursor cursor = cr.query(lookupUri, projection, null, null, null)) {
-            if (cursor != null && cursor.moveToFirst() && cursor.isLast()) {
-                return cursor.getInt(cursor.getColumnIndex(ContactsContract.PhoneLookup._ID));
-            } else {
-                L.w(TAG, "Unable to find contact id from phone number.");
+        ContactIndex.Contact contact = mContactIndex.lookup(notificationInfo.mSenderContactUri);
+        // Without a photo the letter tile is used.
+        Uri photoUri = contact != null ? contact.getPhotoUri() : null;
+
+        mAvatarLoader.load(senderKey, photoUri, bitmap -> {
+            if (mNotificationInfos.get(senderKey) != notificationInfo) {
+                // The conversation was cleaned up while the avatar was loading.
+                return;
+            }
+            postNotification(senderKey, notificationInfo, bitmap);
+        });
+    }
+
+    private void postNotification(SenderKey senderKey, NotificationInfo notificationInfo,
+            @Nullable Bitmap bitmap) {
+        NotificationGroups.Group group =
+                mNotificationGroups.getGroup(senderKey.getDeviceAddress());
+        boolean collapsed = group.add(senderKey);
+        List<MessagePage.Message> unreadMessages = new ArrayList<>();
+        for (MessageKey key : notificationInfo.mMessageKeys) {
+            MapMessage message = mMessages.get(key);
+            if (!message.isReadOnCar()) {
+                unreadMessages.add(new MessagePage.Message(message));
             }
         }
+        NotificationContent content = new NotificationContent(senderKey, notificationInfo,
+                unreadMessages, getLastActivityTime(notificationInfo), group.getKey(), collapsed,
+                shouldAddReplyAction(senderKey.getDeviceAddress()), bitmap);
+        mNotificationScheduler.notify(notificationInfo.mNotificationId,
+                content.mLastReceiveTime, content.mUnreadMessages.size(),
+                () -> createNotification(content));
+        updateGroupSummary(group);
+    }
+
+    private void cancelNotification(SenderKey senderKey, NotificationInfo notificationInfo) {
+        mNotificationScheduler.cancel(notificationInfo.mNotificationId);
+        NotificationGroups.Group group =
+                mNotificationGroups.getGroup(senderKey.getDeviceAddress());
+        if (group.remove(senderKey)) {
+            updateGroupSummary(group);
+        }
+    }
 
-        return 0;
+    /**
+     * Posts, updates or cancels the summary of {@code group}. Updates go through the scheduler
+     * like those of conversations, so a burst of conversation updates results in a single
+     * summary update.
+     */
+    private void updateGroupSummary(NotificationGroups.Group group) {
+        if (!group.isSummaryShown()) {
+            return;
+        }
+        if (group.isEmpty()) {
+            group.onSummaryCancelled();
+            mNotificationScheduler.cancel(group.getSummaryId());
+            return;
+        }
+        List<String> senderNames = new ArrayList<>();
+        long lastReceiveTime = 0;
+        int unreadCount = 0;
+        for (SenderKey senderKey : group.getSenderKeys()) {
+            NotificationInfo info = mNotificationInfos.get(senderKey);
+            senderNames.add(info.mSenderName);
+            lastReceiveTime = Math.max(lastReceiveTime, getLastActivityTime(info));
+            unreadCount += getUnreadCount(info);
+        }
+        SummaryContent content =
+                new SummaryContent(group, senderNames, lastReceiveTime, unreadCount);
+        // Ranked with the group's most urgent conversation, ahead of it on ties.
+        mNotificationScheduler.notify(group.getSummaryId(), content.mLastReceiveTime,
+                content.mUnreadCount, () -> createSummaryNotification(content));
     }
 
     protected void cleanup() {
+        mHandler.removeCallbacks(mMapGraceExpiredRunnable);
         cleanupMessagesAndNotifications(key -> true);
         synchronized (mMapClientLock) {
             if (mBluetoothMapClient != null) {
                 mBluetoothMapClient.close();
             }
         }
+        mHandler.removeCallbacks(mSaveStateRunnable);
+        mAvatarLoader.shutdown();
+        mNotificationScheduler.shutdown();
+        mNotificationRenderer.shutdown();
+        mMmsAttachmentPipeline.shutdown();
+        mContactPhotoPrefetcher.shutdown();
+        mContactIndex.shutdown();
+        mSmsDatabaseHandler.shutdown();
+        mConversationStore.close();
     }
 
-    private Notification createNotification(
-            SenderKey senderKey, NotificationInfo notificationInfo, Bitmap bitmap) {
+    /**
+     * Builds the notification of a conversation from a snapshot of its content. Runs on a
+     * {@link NotificationRenderer} thread, so apart from {@code content} it may only use final
+     * configuration and thread-safe helpers, never the delegate's state.
+     */
+    private Notification createNotification(NotificationContent content) {
         String contentText = mContext.getResources().getQuantityString(
-                R.plurals.notification_new_message, notificationInfo.mMessageKeys.size(),
-                notificationInfo.mMessageKeys.size());
-        long lastReceiveTime = mMessages.get(notificationInfo.mMessageKeys.getLast())
-                .getReceiveTime();
+                R.plurals.notification_new_message, content.mMessageCount,
+                content.mMessageCount);
+        long lastReceiveTime = content.mLastReceiveTime;
 
+        Bitmap bitmap = content.mBitmap;
         if (bitmap == null) {
-            bitmap = letterTileBitmap(notificationInfo.mSenderName);
+            bitmap = letterTileBitmap(content.mSenderName);
         }
+        // Falls back to the bitmap if the avatar can't be published.
+        Uri avatarUri = mAvatarsAsContentUris
+                ? AvatarPublisher.getInstance(mContext).publish(bitmap) : null;
 
-        final String senderName = notificationInfo.mSenderName;
-        final int notificationId = notificationInfo.mNotificationId;
+        final SenderKey senderKey = content.mSenderKey;
+        final String senderName = content.mSenderName;
+        final int notificationId = content.mNotificationId;
 
         // Create the Content Intent
         PendingIntent deleteIntent = createServiceIntent(senderKey, notificationId,
                 MessengerService.ACTION_CLEAR_NOTIFICATION_STATE);
 
-        List<Action> actions = getNotificationActions(senderKey, notificationId);
+        List<Action> actions =
+                getNotificationActions(senderKey, notificationId, content.mCanReply);
 
         Person user = new Person.Builder()
                 .setName(STATIC_USER_NAME)
                 .build();
         MessagingStyle messagingStyle = new MessagingStyle(user);
-        Person sender = new Person.Builder()
+        Person.Builder senderBuilder = new Person.Builder()
                 .setName(senderName)
-                .setUri(notificationInfo.mSenderContactUri)
-                .build();
-        notificationInfo.mMessageKeys.stream().map(mMessages::get).forEachOrdered(message -> {
-            if (!message.isReadOnCar()) {
-                messagingStyle.addMessage(
-                        message.getMessageText(),
-                        message.getReceiveTime(),
-                        sender);
-            }
-        });
+                .setUri(content.mSenderContactUri);
+        if (avatarUri != null) {
+            senderBuilder.setIcon(IconCompat.createWithContentUri(avatarUri));
+        }
+        Person sender = senderBuilder.build();
+        List<MessagingStyle.Message> styleMessages = new ArrayList<>();
+        for (MessagePage.Message message : content.mUnreadMessages) {
+            styleMessages.add(new MessagingStyle.Message(
+                    message.getMessageText(),
+                    message.getReceiveTime(),
+                    sender));
+        }
+        for (ImageAttachment attachment : content.mImageAttachments) {
+            styleMessages.add(new MessagingStyle.Message(
+                    mContext.getString(R.string.notification_image_attachment),
+                    attachment.mReceiveTime, sender)
+                    .setData(ImageCache.getMmsAttachments(mContext).getMimeType(),
+                            attachment.mUri));
+        }
+        styleMessages.sort((a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+        List<MessagingStyle.Message> shownMessages = mPayloadBudget.fit(styleMessages);
+        int hiddenCount = styleMessages.size() - shownMessages.size();
+        if (hiddenCount > 0) {
+            // Stands for the older messages left out, right before the ones shown.
+            messagingStyle.addMessage(new MessagingStyle.Message(
+                    mContext.getResources().getQuantityString(
+                            R.plurals.notification_more_messages, hiddenCount, hiddenCount),
+                    styleMessages.get(hiddenCount - 1).getTimestamp(), sender));
+        }
+        for (MessagingStyle.Message styleMessage : shownMessages) {
+            messagingStyle.addMessage(styleMessage);
+        }
 
         NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext,
                 MessengerService.SMS_CHANNEL_ID)
@@ -370,17 +991,68 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
                 .setContentText(contentText)
                 .setStyle(messagingStyle)
                 .setCategory(Notification.CATEGORY_MESSAGE)
-                .setLargeIcon(bitmap)
                 .setSmallIcon(R.drawable.ic_message)
                 .setWhen(lastReceiveTime)
                 .setShowWhen(true)
+                .setGroup(content.mGroupKey)
                 .setDeleteIntent(deleteIntent);
+        if (content.mCollapsed) {
+            // The group summary alerts for the whole group.
+            builder.setGroupAlertBehavior(NotificationCompat.GROUP_ALERT_SUMMARY);
+        }
 
         for (final Action action : actions) {
             builder.addAction(action);
         }
 
-        return builder.build();
+        if (avatarUri == null) {
+            return builder.setLargeIcon(bitmap).build();
+        }
+        // NotificationCompat only takes bitmaps as large icon.
+        return Notification.Builder.recoverBuilder(mContext, builder.build())
+                .setLargeIcon(Icon.createWithContentUri(avatarUri))
+                .build();
+    }
+
+    /**
+     * Builds the summary notification of a device's conversations. Runs on a
+     * {@link NotificationRenderer} thread, like {@link #createNotification}.
+     */
+    private Notification createSummaryNotification(SummaryContent content) {
+        int conversationCount = content.mSenderKeys.size();
+        String title = mContext.getResources().getQuantityString(
+                R.plurals.notification_group_title, conversationCount, conversationCount);
+        NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle()
+                .setBigContentTitle(title);
+        for (int i = 0; i < Math.min(MAX_SUMMARY_LINES, conversationCount); i++) {
+            inboxStyle.addLine(content.mSenderNames.get(i));
+        }
+
+        Intent markAsReadIntent = new Intent(mContext, MessengerService.class)
+                .setAction(MessengerService.ACTION_MARK_AS_READ)
+                .putParcelableArrayListExtra(MessengerService.EXTRA_SENDER_KEYS,
+                        content.mSenderKeys);
+        Action markAsReadAction = new Action.Builder(android.R.drawable.ic_media_play,
+                mContext.getString(R.string.action_mark_as_read),
+                PendingIntent.getForegroundService(mContext, content.mSummaryId,
+                        markAsReadIntent, PendingIntent.FLAG_UPDATE_CURRENT))
+                .setSemanticAction(Action.SEMANTIC_ACTION_MARK_AS_READ)
+                .setShowsUserInterface(false)
+                .build();
+
+        return new NotificationCompat.Builder(mContext, MessengerService.SMS_CHANNEL_ID)
+                .setContentTitle(title)
+                .setContentText(TextUtils.join(", ", content.mSenderNames))
+                .setStyle(inboxStyle)
+                .setCategory(Notification.CATEGORY_MESSAGE)
+                .setSmallIcon(R.drawable.ic_message)
+                .setWhen(content.mLastReceiveTime)
+                .setShowWhen(true)
+                .setGroup(content.mGroupKey)
+                .setGroupSummary(true)
+                .setGroupAlertBehavior(NotificationCompat.GROUP_ALERT_SUMMARY)
+                .addAction(markAsReadAction)
+                .build();
     }
 
     private Bitmap letterTileBitmap(String senderName) {
@@ -404,14 +1076,15 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
                 PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
-    private List<Action> getNotificationActions(SenderKey senderKey, int notificationId) {
+    private List<Action> getNotificationActions(SenderKey senderKey, int notificationId,
+            boolean canReply) {
 
         final int icon = android.R.drawable.ic_media_play;
 
         final List<Action> actionList = new ArrayList<>();
 
         // Reply action
-        if (shouldAddReplyAction(senderKey.getDeviceAddress())) {
+        if (canReply) {
             final String replyString = mContext.getString(R.string.action_reply);
             PendingIntent replyIntent = createServiceIntent(senderKey, notificationId,
                     MessengerService.ACTION_VOICE_REPLY);
@@ -461,15 +1134,122 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
     static class NotificationInfo {
         private static int NEXT_NOTIFICATION_ID = 0;
 
-        final int mNotificationId = NEXT_NOTIFICATION_ID++;
+        final int mNotificationId;
         final String mSenderName;
         @Nullable
         final String mSenderContactUri;
         final LinkedList<MessageKey> mMessageKeys = new LinkedList<>();
+        // mMessageKeys by position in the conversation, for paging.
+        final TreeMap<MessagePage.Position, MessageKey> mMessageKeysByPosition = new TreeMap<>();
+        // Images of MMS messages from the sender not yet marked as read; not persisted.
+        final List<ImageAttachment> mImageAttachments = new ArrayList<>();
 
         NotificationInfo(String senderName, @Nullable String senderContactUri) {
+            this(senderName, senderContactUri, NEXT_NOTIFICATION_ID);
+        }
+
+        /**
+         * Creates an info reusing {@code notificationId}, e.g. to keep updating a notification
+         * that was posted before the service restarted.
+         */
+        NotificationInfo(String senderName, @Nullable String senderContactUri,
+                int notificationId) {
+            mNotificationId = notificationId;
             mSenderName = senderName;
             mSenderContactUri = senderContactUri;
+            NEXT_NOTIFICATION_ID = Math.max(NEXT_NOTIFICATION_ID, notificationId + 1);
+        }
+
+        /** Adds the key of {@code message}, the latest message of the conversation. */
+        void addMessageKey(MessageKey key, MapMessage message) {
+            mMessageKeys.add(key);
+            mMessageKeysByPosition.put(new MessagePage.Position(message), key);
+        }
+
+        /**
+         * Drops the keys of messages not in {@code messages}, and indexes the others, e.g. after
+         * the keys were restored from a {@link StateSnapshot}.
+         */
+        void retainMessageKeys(Map<MessageKey, MapMessage> messages) {
+            mMessageKeys.removeIf(key -> !messages.containsKey(key));
+            mMessageKeysByPosition.clear();
+            for (MessageKey key : mMessageKeys) {
+                mMessageKeysByPosition.put(new MessagePage.Position(messages.get(key)), key);
+            }
+        }
+    }
+
+    /**
+     * Immutable snapshot of what the notification of a conversation shows, taken on the main
+     * thread so that the notification can be built on another one.
+     */
+    private static class NotificationContent {
+        final SenderKey mSenderKey;
+        final int mNotificationId;
+        final String mSenderName;
+        @Nullable
+        final String mSenderContactUri;
+        final int mMessageCount;
+        final long mLastReceiveTime;
+        final List<MessagePage.Message> mUnreadMessages;
+        final List<ImageAttachment> mImageAttachments;
+        final String mGroupKey;
+        // Whether the notification is collapsed under its group's summary.
+        final boolean mCollapsed;
+        // Whether the device supports replies through MAP.
+        final boolean mCanReply;
+        // The sender's avatar, or null to use a letter tile.
+        @Nullable
+        final Bitmap mBitmap;
+
+        NotificationContent(SenderKey senderKey, NotificationInfo info,
+                List<MessagePage.Message> unreadMessages, long lastReceiveTime, String groupKey,
+                boolean collapsed, boolean canReply, @Nullable Bitmap bitmap) {
+            mSenderKey = senderKey;
+            mNotificationId = info.mNotificationId;
+            mSenderName = info.mSenderName;
+            mSenderContactUri = info.mSenderContactUri;
+            mMessageCount = info.mMessageKeys.size();
+            mLastReceiveTime = lastReceiveTime;
+            mUnreadMessages = unreadMessages;
+            mImageAttachments = new ArrayList<>(info.mImageAttachments);
+            mGroupKey = groupKey;
+            mCollapsed = collapsed;
+            mCanReply = canReply;
+            mBitmap = bitmap;
+        }
+    }
+
+    /** Snapshot of what the summary of a notification group shows, like NotificationContent. */
+    private static class SummaryContent {
+        final int mSummaryId;
+        final String mGroupKey;
+        // Most recently updated first.
+        final ArrayList<SenderKey> mSenderKeys;
+        // Matching mSenderKeys.
+        final List<String> mSenderNames;
+        final long mLastReceiveTime;
+        final int mUnreadCount;
+
+        SummaryContent(NotificationGroups.Group group, List<String> senderNames,
+                long lastReceiveTime, int unreadCount) {
+            mSummaryId = group.getSummaryId();
+            mGroupKey = group.getKey();
+            mSenderKeys = new ArrayList<>(group.getSenderKeys());
+            mSenderNames = senderNames;
+            mLastReceiveTime = lastReceiveTime;
+            mUnreadCount = unreadCount;
+        }
+    }
+
+    /** An MMS image, served by {@link AttachmentProvider}. */
+    private static class ImageAttachment {
+        final Uri mUri;
+        final long mReceiveTime;
+
+        ImageAttachment(Uri uri, long receiveTime) {
+            mUri = uri;
+            mReceiveTime = receiveTime;
         }
     }
 
@@ -479,7 +1259,11 @@ public class MessengerDelegate implements BluetoothMonitor.OnBluetoothEventListe
      */
     public static class MessageKey extends CompositeKey {
         MessageKey(MapMessage message) {
-            super(message.getDeviceAddress(), message.getHandle());
+            this(message.getDeviceAddress(), message.getHandle());
+        }
+
+        MessageKey(String deviceAddress, String handle) {
+            super(deviceAddress, handle);
         }
     }
 }
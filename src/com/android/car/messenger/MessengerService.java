@@ -8,19 +8,31 @@ import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
 import android.media.AudioAttributes;
+import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
+import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.RemoteInput;
 
 import com.android.car.messenger.bluetooth.BluetoothMonitor;
 import com.android.car.messenger.log.L;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /** Service responsible for handling SMS messaging events from paired Bluetooth devices. */
 public class MessengerService extends Service {
     private final static String TAG = "CM.MessengerService";
@@ -51,6 +63,12 @@ public class MessengerService extends Service {
     /* EXTRAS */
     /** Key under which the {@link SenderKey} is provided. */
     public static final String EXTRA_SENDER_KEY = "com.android.car.messenger.EXTRA_SENDER_KEY";
+    /**
+     * Key under which an {@code ArrayList} of {@link SenderKey}s is provided, to act on several
+     * conversations at once. Accepted instead of {@link #EXTRA_SENDER_KEY} by
+     * {@link #ACTION_CLEAR_NOTIFICATION_STATE} and {@link #ACTION_MARK_AS_READ}.
+     */
+    public static final String EXTRA_SENDER_KEYS = "com.android.car.messenger.EXTRA_SENDER_KEYS";
 
     /**
      * The resultKey of the {@link RemoteInput} which is sent in the reply callback {@link Action}.
@@ -62,19 +80,73 @@ public class MessengerService extends Service {
     private static final String APP_RUNNING_CHANNEL_ID = "APP_RUNNING_CHANNEL_ID";
     private static final int SERVICE_STARTED_NOTIFICATION_ID = Integer.MAX_VALUE;
 
+    private static volatile boolean sIsRunning;
+
     /** Delegate class used to handle this services' actions */
     private MessengerDelegate mMessengerDelegate;
 
     /** Notifies this service of new bluetooth actions */
     private BluetoothMonitor mBluetoothMonitor;
 
+    private StartupMetrics mStartupMetrics;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Startup work that doesn't touch main-thread state runs here, while the main thread creates
+    // the delegate; the contact index loads on its own thread.
+    private final ExecutorService mStartupExecutor = Executors.newFixedThreadPool(2);
+    private ContactIndex mContactIndex;
+    private StateSnapshot mStateSnapshot;
+    private Future<StateSnapshot.Contents> mSnapshotContents;
+    private Future<?> mStoreOpened;
+
     /* Binding boilerplate */
     private final IBinder mBinder = new LocalBinder();
 
+    /** Local API of this service. Must be called on the main thread. */
     public class LocalBinder extends Binder {
         MessengerService getService() {
             return MessengerService.this;
         }
+
+        /**
+         * Returns snapshots of the received messages whose text contains all words of
+         * {@code query}, newest first. Each word also matches words it is a prefix of.
+         */
+        List<MessagePage.Message> searchMessages(String query) {
+            ensureInitialized();
+            return mMessengerDelegate.searchMessages(query);
+        }
+
+        /**
+         * Returns snapshots of the received messages whose sender name matches {@code query},
+         * newest first.
+         */
+        List<MessagePage.Message> searchMessagesBySender(String query) {
+            ensureInitialized();
+            return mMessengerDelegate.searchMessagesBySender(query);
+        }
+
+        /**
+         * Returns a snapshot of all conversations with their unread counts, most recently active
+         * first.
+         */
+        List<ConversationSummary> getConversations() {
+            ensureInitialized();
+            return mMessengerDelegate.getConversations();
+        }
+
+        /**
+         * Returns a page of up to {@code pageSize} messages of a conversation, newest first.
+         * Tokens stay valid when messages are removed from the conversation.
+         *
+         * @param pageToken {@code null} for the first page, else
+         *                  {@link MessagePage#getNextPageToken()} of the previous page
+         * @param pageSize  at most {@link MessengerDelegate#MAX_PAGE_SIZE}
+         */
+        MessagePage getMessages(SenderKey senderKey, @Nullable String pageToken, int pageSize) {
+            ensureInitialized();
+            return mMessengerDelegate.getMessages(senderKey, pageToken, pageSize);
+        }
     }
 
     @Override
@@ -82,17 +154,68 @@ public class MessengerService extends Service {
         return mBinder;
     }
 
+    /** Returns true if an instance of this service is running in this process. */
+    static boolean isRunning() {
+        return sIsRunning;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         L.d(TAG, "onCreate");
+        sIsRunning = true;
+        mStartupMetrics = new StartupMetrics();
+
+        // Go foreground first, so the system's foreground-service deadline is met no matter how
+        // long the remaining setup takes. The rest runs after onCreate has returned, unless a
+        // command needs it earlier.
+        sendServiceRunningNotification();
+        mStartupMetrics.markPhase(StartupMetrics.PHASE_FOREGROUND);
+        mStateSnapshot = new StateSnapshot(getFilesDir());
+        mSnapshotContents = mStartupExecutor.submit(mStateSnapshot::read);
+        mStoreOpened = mStartupExecutor.submit(
+                () -> ConversationStore.getInstance(this).getWritableDatabase());
+        mContactIndex = new ContactIndex(this);
+        mHandler.post(this::ensureInitialized);
+    }
 
-        mMessengerDelegate = new MessengerDelegate(this);
+    /**
+     * Creates the delegate and starts monitoring Bluetooth, if not done yet. Waits for the
+     * background startup work to finish first.
+     */
+    private void ensureInitialized() {
+        if (mMessengerDelegate != null) {
+            return;
+        }
+        mMessengerDelegate = new MessengerDelegate(this, mStartupMetrics, mContactIndex,
+                mStateSnapshot);
+        mStartupMetrics.markPhase(StartupMetrics.PHASE_DELEGATE);
+        mMessengerDelegate.restoreState(join(mSnapshotContents));
+        join(mStoreOpened);
+        mStartupExecutor.shutdown();
+        ConversationProvider.setDelegate(mMessengerDelegate);
+        mStartupMetrics.markPhase(StartupMetrics.PHASE_RESTORE);
         mBluetoothMonitor = new BluetoothMonitor(this);
         mBluetoothMonitor.registerListener(mMessengerDelegate);
-        sendServiceRunningNotification();
+        mStartupMetrics.markPhase(StartupMetrics.PHASE_BLUETOOTH);
+        mStartupMetrics.markPhase(StartupMetrics.PHASE_READY);
     }
 
+    /**
+     * Waits for a startup task. A failed task is logged, and its work is then done lazily on first
+     * use.
+     */
+    @Nullable
+    private static <T> T join(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            L.e(TAG, e, "Startup task failed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
 
     private void sendServiceRunningNotification() {
         NotificationManager notificationManager = getSystemService(NotificationManager.class);
@@ -103,25 +226,23 @@ public class MessengerService extends Service {
         }
 
         // Create notification channel for app running notification
-        {
-            NotificationChannel appRunningNotificationChannel =
-                    new NotificationChannel(APP_RUNNING_CHANNEL_ID,
-                            getString(R.string.app_running_msg_channel_name),
-                            NotificationManager.IMPORTANCE_MIN);
-            notificationManager.createNotificationChannel(appRunningNotificationChannel);
-        }
-
-        {
-            AudioAttributes attributes = new AudioAttributes.Builder()
-                    .setUsage(AudioAttributes.USAGE_NOTIFICATION)
-                    .build();
-            NotificationChannel smsChannel = new NotificationChannel(SMS_CHANNEL_ID,
-                    getString(R.string.sms_channel_name),
-                    NotificationManager.IMPORTANCE_HIGH);
-            smsChannel.setDescription(getString(R.string.sms_channel_description));
-            smsChannel.setSound(Settings.System.DEFAULT_NOTIFICATION_URI, attributes);
-            notificationManager.createNotificationChannel(smsChannel);
-        }
+        NotificationChannel appRunningNotificationChannel =
+                new NotificationChannel(APP_RUNNING_CHANNEL_ID,
+                        getString(R.string.app_running_msg_channel_name),
+                        NotificationManager.IMPORTANCE_MIN);
+
+        AudioAttributes attributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_NOTIFICATION)
+                .build();
+        NotificationChannel smsChannel = new NotificationChannel(SMS_CHANNEL_ID,
+                getString(R.string.sms_channel_name),
+                NotificationManager.IMPORTANCE_HIGH);
+        smsChannel.setDescription(getString(R.string.sms_channel_description));
+        smsChannel.setSound(Settings.System.DEFAULT_NOTIFICATION_URI, attributes);
+
+        // Create both channels in a single call to the NotificationManager.
+        notificationManager.createNotificationChannels(
+                Arrays.asList(appRunningNotificationChannel, smsChannel));
 
         final Notification notification =
                 new NotificationCompat.Builder(this, APP_RUNNING_CHANNEL_ID)
@@ -136,8 +257,26 @@ public class MessengerService extends Service {
     public void onDestroy() {
         super.onDestroy();
         L.d(TAG, "onDestroy");
-        mMessengerDelegate.cleanup();
-        mBluetoothMonitor.cleanup();
+        sIsRunning = false;
+        mHandler.removeCallbacksAndMessages(null);
+        ConversationProvider.setDelegate(null);
+        mStartupExecutor.shutdown();
+        if (mMessengerDelegate != null) {
+            mMessengerDelegate.saveState();
+            mMessengerDelegate.cleanup();
+            mBluetoothMonitor.cleanup();
+        } else if (mContactIndex != null) {
+            mContactIndex.shutdown();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        L.d(TAG, "onTrimMemory: %d", level);
+        if (mMessengerDelegate != null) {
+            mMessengerDelegate.saveState();
+        }
     }
 
     @Override
@@ -147,6 +286,7 @@ public class MessengerService extends Service {
         if (intent == null || intent.getAction() == null) return result;
 
         final String action = intent.getAction();
+        ensureInitialized();
 
         if (!hasRequiredArgs(intent)) {
             L.e(TAG, "Dropping command: %s. Reason: Missing required argument.", action);
@@ -170,7 +310,7 @@ public class MessengerService extends Service {
                 // NO-OP
                 break;
             case ACTION_RECEIVED_MMS:
-                // NO-OP
+                // NO-OP: images are loaded once the message is stored in the Telephony provider.
                 break;
             case TelephonyManager.ACTION_RESPOND_VIA_MESSAGE:
                 respondViaMessage(intent);
@@ -190,9 +330,13 @@ public class MessengerService extends Service {
      */
     private static boolean hasRequiredArgs(Intent intent) {
         switch (intent.getAction()) {
-            case ACTION_VOICE_REPLY:
             case ACTION_CLEAR_NOTIFICATION_STATE:
             case ACTION_MARK_AS_READ:
+                if (intent.hasExtra(EXTRA_SENDER_KEYS)) {
+                    return true;
+                }
+                // Fall through.
+            case ACTION_VOICE_REPLY:
                 if (!intent.hasExtra(EXTRA_SENDER_KEY)) {
                     L.w(TAG, "Intent %s missing sender-key extra.", intent.getAction());
                     return false;
@@ -225,25 +369,33 @@ public class MessengerService extends Service {
     }
 
     /**
-     * Clears notification(s) associated with a given sender key.
+     * Clears notification(s) associated with the given sender key(s).
      *
-     * @param intent intent containing {@link MessengerService#EXTRA_SENDER_KEY} bundle argument
+     * @param intent intent containing {@link MessengerService#EXTRA_SENDER_KEY} or
+     *               {@link MessengerService#EXTRA_SENDER_KEYS} bundle argument
      */
     public void clearNotificationState(Intent intent) {
-        final SenderKey senderKey = intent.getParcelableExtra(EXTRA_SENDER_KEY);
         L.d(TAG, "clearNotificationState");
-        mMessengerDelegate.clearNotifications(key -> key.equals(senderKey));
+        mMessengerDelegate.clearNotifications(getSenderKeys(intent));
     }
 
     /**
-     * Mark a conversation associated with a given sender key as read.
+     * Mark the conversation(s) associated with the given sender key(s) as read.
      *
-     * @param intent intent containing {@link MessengerService#EXTRA_SENDER_KEY} bundle argument
+     * @param intent intent containing {@link MessengerService#EXTRA_SENDER_KEY} or
+     *               {@link MessengerService#EXTRA_SENDER_KEYS} bundle argument
      */
     public void markAsRead(Intent intent) {
-        final SenderKey senderKey = intent.getParcelableExtra(EXTRA_SENDER_KEY);
         L.d(TAG, "markAsRead");
-        mMessengerDelegate.markAsRead(senderKey);
+        mMessengerDelegate.markAsRead(getSenderKeys(intent));
+    }
+
+    private static List<SenderKey> getSenderKeys(Intent intent) {
+        List<SenderKey> senderKeys = intent.getParcelableArrayListExtra(EXTRA_SENDER_KEYS);
+        if (senderKeys == null) {
+            senderKeys = Collections.singletonList(intent.getParcelableExtra(EXTRA_SENDER_KEY));
+        }
+        return senderKeys;
     }
 
     /**
@@ -258,6 +410,18 @@ public class MessengerService extends Service {
             return;
         }
 
-        // TODO: get senderKey from the recipient's address, and sendMessage() to it.
+        String messageText = extras.getString(Intent.EXTRA_TEXT);
+        Uri recipientUri = intent.getData();
+        if (TextUtils.isEmpty(messageText) || recipientUri == null) {
+            L.w(TAG, "Dropping response via message. Missing text or recipient.");
+            return;
+        }
+        L.d(TAG, "respondViaMessage");
+        // e.g. "smsto:+15555550100", possibly with several comma-separated recipients.
+        for (String recipient : recipientUri.getSchemeSpecificPart().split("[,;]")) {
+            if (!TextUtils.isEmpty(recipient.trim())) {
+                mMessengerDelegate.respondViaMessage(recipient.trim(), messageText);
+            }
+        }
     }
 }
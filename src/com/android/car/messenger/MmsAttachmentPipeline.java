@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Telephony;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.messenger.log.L;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the images of MMS messages received into the Telephony provider, off the main thread.
+ * <p>
+ * The provider is observed for messages in the inbox that have been downloaded, as opposed to the
+ * notifications of messages still to be downloaded. Only messages received after the pipeline was
+ * created are loaded, each one once.
+ * <p>
+ * Attachment parts are streamed from the Telephony provider and downsampled while decoding, so a
+ * full resolution image is never held in memory. The results are kept in
+ * {@link ImageCache#getMmsAttachments(Context)}, so an attachment is only decoded once, and are
+ * exposed through {@link AttachmentProvider}.
+ */
+class MmsAttachmentPipeline {
+    private static final String TAG = "CM.MmsAttachmentPipeline";
+    private static final Uri PART_URI = Uri.parse("content://mms/part");
+    // Larger than any notification renders an image, on any head unit we support.
+    private static final int MAX_IMAGE_DIMENSION_PX = 512;
+    // Sender address type, from PduHeaders.FROM.
+    private static final int ADDRESS_TYPE_FROM = 137;
+    // Type of a downloaded message, from PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF.
+    private static final int MESSAGE_TYPE_RETRIEVE_CONF = 132;
+    // A message and its parts are written in several steps; look for new messages once the
+    // provider has been quiet this long.
+    private static final long SCAN_DELAY_MS = 500;
+
+    /** Images of one MMS message, delivered on the main thread. */
+    interface Callback {
+        void onImagesLoaded(String senderAddress, long receiveTime, List<Uri> imageUris);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final ImageCache mCache;
+    private final Callback mCallback;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mScanRunnable = () -> mExecutor.execute(this::loadNewMessages);
+    private final ContentObserver mMmsObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mMainHandler.removeCallbacks(mScanRunnable);
+            mMainHandler.postDelayed(mScanRunnable, SCAN_DELAY_MS);
+        }
+    };
+    // Id of the newest message looked at; only accessed on mExecutor.
+    private long mLastMessageId = -1;
+
+    /**
+     * Starts loading the images of MMS messages received from now on. {@code callback} is run on
+     * the main thread for each message with images.
+     */
+    MmsAttachmentPipeline(Context context, Callback callback) {
+        mContentResolver = context.getContentResolver();
+        mCache = ImageCache.getMmsAttachments(context);
+        mCallback = callback;
+        mExecutor.execute(() -> mLastMessageId = queryLatestMessageId());
+        mContentResolver.registerContentObserver(Telephony.Mms.CONTENT_URI,
+                true /* notifyForDescendants */, mMmsObserver);
+    }
+
+    void shutdown() {
+        mContentResolver.unregisterContentObserver(mMmsObserver);
+        mMainHandler.removeCallbacks(mScanRunnable);
+        mExecutor.shutdown();
+    }
+
+    private void loadNewMessages() {
+        try (Cursor cursor = mContentResolver.query(Telephony.Mms.CONTENT_URI,
+                new String[]{Telephony.Mms._ID},
+                Telephony.Mms.MESSAGE_BOX + " = " + Telephony.Mms.MESSAGE_BOX_INBOX
+                        + " AND " + Telephony.Mms.MESSAGE_TYPE + " = " + MESSAGE_TYPE_RETRIEVE_CONF
+                        + " AND " + Telephony.Mms._ID + " > " + mLastMessageId,
+                null, Telephony.Mms._ID + " ASC")) {
+            while (cursor != null && cursor.moveToNext()) {
+                mLastMessageId = cursor.getLong(0);
+                load(mLastMessageId);
+            }
+        }
+    }
+
+    private void load(long messageId) {
+        String senderAddress = querySenderAddress(messageId);
+        long receiveTime = queryReceiveTime(messageId);
+        List<Uri> imageUris = loadImages(messageId);
+        if (senderAddress == null || imageUris.isEmpty()) {
+            L.d(TAG, "Ignoring MMS %d: sender %s, %d images", messageId, senderAddress,
+                    imageUris.size());
+            return;
+        }
+        mMainHandler.post(() -> mCallback.onImagesLoaded(senderAddress, receiveTime, imageUris));
+    }
+
+    private List<Uri> loadImages(long messageId) {
+        List<Uri> imageUris = new ArrayList<>();
+        try (Cursor cursor = mContentResolver.query(PART_URI,
+                new String[]{Telephony.Mms.Part._ID, Telephony.Mms.Part.CONTENT_TYPE},
+                Telephony.Mms.Part.MSG_ID + " = ?", new String[]{Long.toString(messageId)},
+                null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                String contentType = cursor.getString(1);
+                if (contentType == null || !contentType.startsWith("image/")) {
+                    continue;
+                }
+                long partId = cursor.getLong(0);
+                String key = "mms_" + messageId + "_" + partId;
+                if (mCache.get(key) == null) {
+                    Bitmap bitmap = decodeSampled(ContentUris.withAppendedId(PART_URI, partId));
+                    if (bitmap == null) {
+                        continue;
+                    }
+                    boolean cached = mCache.put(key, bitmap);
+                    bitmap.recycle();
+                    if (!cached) {
+                        continue;
+                    }
+                }
+                imageUris.add(mCache.getUri(key));
+            }
+        }
+        return imageUris;
+    }
+
+    /**
+     * Decodes the image at {@code partUri} at no more than {@link #MAX_IMAGE_DIMENSION_PX} on
+     * either side, streaming it twice: once for its bounds, once to decode it subsampled.
+     */
+    @Nullable
+    private Bitmap decodeSampled(Uri partUri) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = mContentResolver.openInputStream(partUri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException e) {
+            L.e(TAG, e, "Unable to read %s", partUri);
+            return null;
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            L.w(TAG, "Unable to decode bounds of %s", partUri);
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (Math.max(width, height) / (options.inSampleSize * 2) >= MAX_IMAGE_DIMENSION_PX) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap;
+        try (InputStream in = mContentResolver.openInputStream(partUri)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException e) {
+            L.e(TAG, e, "Unable to read %s", partUri);
+            return null;
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        // Subsampling only scales by powers of two; finish the last step exactly.
+        float scale = (float) MAX_IMAGE_DIMENSION_PX
+                / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale < 1) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.round(bitmap.getWidth() * scale), Math.round(bitmap.getHeight() * scale),
+                    true /* filter */);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+
+    private long queryLatestMessageId() {
+        try (Cursor cursor = mContentResolver.query(Telephony.Mms.CONTENT_URI,
+                new String[]{Telephony.Mms._ID}, null, null, Telephony.Mms._ID + " DESC")) {
+            return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    @Nullable
+    private String querySenderAddress(long messageId) {
+        Uri addressUri = Telephony.Mms.CONTENT_URI.buildUpon()
+                .appendPath(Long.toString(messageId))
+                .appendPath("addr")
+                .build();
+        try (Cursor cursor = mContentResolver.query(addressUri,
+                new String[]{Telephony.Mms.Addr.ADDRESS},
+                Telephony.Mms.Addr.TYPE + " = " + ADDRESS_TYPE_FROM, null, null)) {
+            return cursor != null && cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    private long queryReceiveTime(long messageId) {
+        try (Cursor cursor = mContentResolver.query(
+                ContentUris.withAppendedId(Telephony.Mms.CONTENT_URI, messageId),
+                new String[]{Telephony.Mms.DATE}, null, null, null)) {
+            // MMS dates are in seconds.
+            return cursor != null && cursor.moveToFirst()
+                    ? cursor.getLong(0) * 1000 : System.currentTimeMillis();
+        }
+    }
+}
@@ -21,11 +21,17 @@ import android.content.Context;
 import android.content.Intent;
 
 /**
- * No-op Receiver that only exists in order to be eligible to be the default SMS app.
+ * Receiver for MMS notifications, which only exists in order to be eligible to be the default SMS
+ * app. The images of MMS messages are loaded once the messages are stored in the Telephony
+ * provider, see {@link MmsAttachmentPipeline}.
  */
 public class MmsReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
+        // The service does not act on this broadcast, so only make sure it is running.
+        if (MessengerService.isRunning()) {
+            return;
+        }
         Intent startIntent = new Intent(context, MessengerService.class)
                 .setAction(MessengerService.ACTION_RECEIVED_MMS);
         context.startForegroundService(startIntent);
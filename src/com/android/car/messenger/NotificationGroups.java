@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the conversation notifications shown per device, which form one notification group.
+ * <p>
+ * A group gets a summary notification once it holds {@code threshold} conversations, and the
+ * conversations are then collapsed under it: only the summary alerts. The summary stays until the
+ * group is empty, since cancelling a summary also cancels its children. Summaries use negative
+ * notification ids, which conversations never do. This class must only be used on the main
+ * thread.
+ */
+class NotificationGroups {
+    private static final String GROUP_KEY_PREFIX = "com.android.car.messenger.group.";
+
+    private final int mThreshold;
+    private final Map<String, Group> mGroups = new HashMap<>();
+    private int mNextSummaryId = -1;
+
+    NotificationGroups(int threshold) {
+        mThreshold = threshold;
+    }
+
+    /** Returns the group of {@code deviceAddress}'s conversations. */
+    Group getGroup(String deviceAddress) {
+        return mGroups.computeIfAbsent(deviceAddress,
+                address -> new Group(GROUP_KEY_PREFIX + address, mNextSummaryId--));
+    }
+
+    /** The conversation notifications of one device. */
+    class Group {
+        private final String mKey;
+        private final int mSummaryId;
+        // Ordered from least to most recently updated.
+        private final Set<SenderKey> mSenderKeys = new LinkedHashSet<>();
+        private boolean mSummaryShown;
+
+        private Group(String key, int summaryId) {
+            mKey = key;
+            mSummaryId = summaryId;
+        }
+
+        String getKey() {
+            return mKey;
+        }
+
+        int getSummaryId() {
+            return mSummaryId;
+        }
+
+        /**
+         * Records that the notification of {@code senderKey} is posted or updated.
+         *
+         * @return whether the notification is collapsed under the group's summary
+         */
+        boolean add(SenderKey senderKey) {
+            mSenderKeys.remove(senderKey);
+            mSenderKeys.add(senderKey);
+            if (mSenderKeys.size() >= mThreshold) {
+                mSummaryShown = true;
+            }
+            return mSummaryShown;
+        }
+
+        /**
+         * Records that the notification of {@code senderKey} is cancelled.
+         *
+         * @return whether it was part of the group
+         */
+        boolean remove(SenderKey senderKey) {
+            return mSenderKeys.remove(senderKey);
+        }
+
+        boolean isEmpty() {
+            return mSenderKeys.isEmpty();
+        }
+
+        /** Whether the group has a summary, posted or to be posted. */
+        boolean isSummaryShown() {
+            return mSummaryShown;
+        }
+
+        /** Records that the summary is cancelled; it reappears at the threshold. */
+        void onSummaryCancelled() {
+            mSummaryShown = false;
+        }
+
+        /** Returns the conversations of the group, most recently updated first. */
+        List<SenderKey> getSenderKeys() {
+            List<SenderKey> senderKeys = new ArrayList<>(mSenderKeys);
+            Collections.reverse(senderKeys);
+            return senderKeys;
+        }
+    }
+}
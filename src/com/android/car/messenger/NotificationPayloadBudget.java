@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import androidx.core.app.NotificationCompat.MessagingStyle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bounds the messages a {@link MessagingStyle} notification carries, so that long unread threads
+ * or very long messages don't bring the notification parcel near the binder transaction limit.
+ * <p>
+ * The newest messages are kept, up to a maximum count and a total text size. A message that
+ * doesn't fit the remaining size, or is longer than a single message may be, is ellipsized.
+ */
+class NotificationPayloadBudget {
+    // Texts are parceled as UTF-16.
+    private static final int BYTES_PER_CHAR = 2;
+    private static final String ELLIPSIS = "…";
+    // Shorter texts aren't worth showing ellipsized; the message is dropped instead.
+    private static final int MIN_TRUNCATED_CHARS = 20;
+
+    private final int mMaxMessages;
+    private final int mMaxChars;
+    private final int mMaxMessageChars;
+
+    /**
+     * @param maxMessages maximum number of messages kept
+     * @param maxTextBytes maximum parceled size of the texts of all messages kept
+     * @param maxMessageBytes maximum parceled size of the text of a single message
+     */
+    NotificationPayloadBudget(int maxMessages, int maxTextBytes, int maxMessageBytes) {
+        mMaxMessages = maxMessages;
+        mMaxChars = maxTextBytes / BYTES_PER_CHAR;
+        mMaxMessageChars = maxMessageBytes / BYTES_PER_CHAR;
+    }
+
+    /**
+     * Returns the newest of {@code messages}, sorted oldest first, that fit the budget. Messages
+     * not kept are always older than the ones kept.
+     */
+    List<MessagingStyle.Message> fit(List<MessagingStyle.Message> messages) {
+        List<MessagingStyle.Message> kept = new ArrayList<>();
+        int remainingChars = mMaxChars;
+        for (int i = messages.size() - 1; i >= 0 && kept.size() < mMaxMessages; i--) {
+            MessagingStyle.Message message = messages.get(i);
+            CharSequence text = message.getText() == null ? "" : message.getText();
+            int maxChars = Math.min(remainingChars, mMaxMessageChars);
+            if (text.length() > maxChars) {
+                if (maxChars < MIN_TRUNCATED_CHARS) {
+                    break;
+                }
+                message = withText(message, ellipsize(text, maxChars));
+                text = message.getText();
+            }
+            remainingChars -= text.length();
+            kept.add(message);
+        }
+        Collections.reverse(kept);
+        return kept;
+    }
+
+    private static CharSequence ellipsize(CharSequence text, int maxChars) {
+        int end = maxChars - ELLIPSIS.length();
+        if (Character.isHighSurrogate(text.charAt(end - 1))) {
+            // Don't split a surrogate pair.
+            end--;
+        }
+        return text.subSequence(0, end) + ELLIPSIS;
+    }
+
+    private static MessagingStyle.Message withText(MessagingStyle.Message message,
+            CharSequence text) {
+        MessagingStyle.Message copy = new MessagingStyle.Message(text, message.getTimestamp(),
+                message.getPerson());
+        if (message.getDataUri() != null) {
+            copy.setData(message.getDataMimeType(), message.getDataUri());
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.os.Parcel;
+
+import com.android.car.messenger.log.L;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Builds and posts notifications on a small pool of worker threads.
+ * <p>
+ * Each notification, and so each conversation, is bound to one worker, so its updates and cancels
+ * are applied in order while different conversations render in parallel. An update or cancel
+ * makes all earlier requests for the same notification obsolete; those not started yet are
+ * skipped, and one being built is not posted. The parceled size of posted notifications is
+ * measured. Requests made after {@link #shutdown()} are ignored. This class is thread-safe.
+ */
+class NotificationRenderer {
+    private static final String TAG = "CM.NotificationRenderer";
+    private static final int MAX_THREADS = 4;
+    // Well below the binder transaction limit, which all transactions of the process share.
+    private static final int LARGE_NOTIFICATION_BYTES = 100 * 1024;
+
+    private final NotificationManager mNotificationManager;
+    private final ExecutorService[] mStripes;
+    // Latest request per notification id; only that one may still reach the system.
+    private final Map<Integer, Long> mLatestRequests = new ConcurrentHashMap<>();
+    private final AtomicLong mNextRequest = new AtomicLong();
+    private final AtomicInteger mSkippedCount = new AtomicInteger();
+    private final AtomicInteger mPostedCount = new AtomicInteger();
+    private final AtomicLong mTotalPostedBytes = new AtomicLong();
+    private final AtomicInteger mMaxPostedBytes = new AtomicInteger();
+    private volatile boolean mShutdown;
+
+    NotificationRenderer(NotificationManager notificationManager) {
+        this(notificationManager,
+                Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    NotificationRenderer(NotificationManager notificationManager, int numThreads) {
+        mNotificationManager = notificationManager;
+        mStripes = new ExecutorService[Math.max(1, numThreads)];
+        for (int i = 0; i < mStripes.length; i++) {
+            mStripes[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    /**
+     * Builds the notification with {@code notification} on a worker thread and posts it, unless
+     * a newer request for {@code notificationId} arrives first.
+     */
+    void render(int notificationId, Supplier<Notification> notification) {
+        if (mShutdown) {
+            return;
+        }
+        long request = startRequest(notificationId);
+        execute(notificationId, () -> {
+            if (!isLatest(notificationId, request)) {
+                return;
+            }
+            Notification built = notification.get();
+            if (!isLatest(notificationId, request)) {
+                return;
+            }
+            measure(notificationId, built);
+            mNotificationManager.notify(notificationId, built);
+        });
+    }
+
+    /** Cancels the notification, after any request for it that is already being applied. */
+    void cancel(int notificationId) {
+        if (mShutdown) {
+            return;
+        }
+        long request = startRequest(notificationId);
+        execute(notificationId, () -> {
+            if (isLatest(notificationId, request)) {
+                mNotificationManager.cancel(notificationId);
+                mLatestRequests.remove(notificationId, request);
+            }
+        });
+    }
+
+    void shutdown() {
+        mShutdown = true;
+        for (ExecutorService stripe : mStripes) {
+            stripe.shutdown();
+        }
+        L.d(TAG, "%s", this);
+    }
+
+    @Override
+    public String toString() {
+        int postedCount = mPostedCount.get();
+        return String.format("NotificationRenderer{threads=%d, requests=%d, skipped=%d, "
+                        + "posted=%d, avgBytes=%d, maxBytes=%d}",
+                mStripes.length, mNextRequest.get(), mSkippedCount.get(), postedCount,
+                postedCount == 0 ? 0 : mTotalPostedBytes.get() / postedCount,
+                mMaxPostedBytes.get());
+    }
+
+    private void measure(int notificationId, Notification notification) {
+        Parcel parcel = Parcel.obtain();
+        int bytes;
+        try {
+            notification.writeToParcel(parcel, 0);
+            bytes = parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+        mPostedCount.incrementAndGet();
+        mTotalPostedBytes.addAndGet(bytes);
+        mMaxPostedBytes.accumulateAndGet(bytes, Math::max);
+        if (bytes > LARGE_NOTIFICATION_BYTES) {
+            L.w(TAG, "Notification %d is %d bytes large", notificationId, bytes);
+        }
+    }
+
+    private long startRequest(int notificationId) {
+        long request = mNextRequest.incrementAndGet();
+        mLatestRequests.put(notificationId, request);
+        return request;
+    }
+
+    private boolean isLatest(int notificationId, long request) {
+        Long latest = mLatestRequests.get(notificationId);
+        if (latest == null || latest != request) {
+            mSkippedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void execute(int notificationId, Runnable task) {
+        try {
+            mStripes[Math.floorMod(notificationId, mStripes.length)].execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down concurrently with this request.
+            L.d(TAG, "Dropping request for notification %d after shutdown", notificationId);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.app.Notification;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.car.messenger.log.L;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Posts notifications through a token bucket, so that bursts of updates stay within the rate the
+ * system accepts from one app instead of being dropped.
+ * <p>
+ * Updates that can't be posted right away wait in a backlog holding at most one update per
+ * notification; a newer update replaces the waiting one. The backlog is served newest conversation
+ * first, and conversations with more unread messages first among equally recent ones. Cancels are
+ * applied immediately, since the system doesn't rate limit them, and they drop any waiting update
+ * of the same notification. This class must only be used on the thread of its handler.
+ */
+class NotificationScheduler {
+    private static final String TAG = "CM.NotificationScheduler";
+
+    private final NotificationRenderer mNotificationRenderer;
+    private final Handler mHandler;
+    private final LongSupplier mClock;
+    private final int mBurstSize;
+    private final double mTokensPerMs;
+    private final Map<Integer, PendingUpdate> mPendingUpdates = new HashMap<>();
+    private final Runnable mDrainRunnable = this::drain;
+
+    private double mTokens;
+    private long mLastRefillTime;
+
+    private int mPostedCount;
+    private int mDelayedCount;
+    private int mMergedCount;
+    private long mTotalWaitMs;
+    private long mMaxWaitMs;
+
+    /**
+     * @param updatesPerSecond sustained rate of posted updates; also the size of the bursts
+     *                         allowed after a quiet period
+     */
+    NotificationScheduler(NotificationRenderer notificationRenderer, Handler handler,
+            int updatesPerSecond) {
+        this(notificationRenderer, handler, updatesPerSecond, SystemClock::uptimeMillis);
+    }
+
+    NotificationScheduler(NotificationRenderer notificationRenderer, Handler handler,
+            int updatesPerSecond, LongSupplier clock) {
+        mNotificationRenderer = notificationRenderer;
+        mHandler = handler;
+        mClock = clock;
+        mBurstSize = updatesPerSecond;
+        mTokensPerMs = updatesPerSecond / 1000.0;
+        mTokens = mBurstSize;
+        mLastRefillTime = clock.getAsLong();
+    }
+
+    /**
+     * Posts the notification built by {@code notification} as soon as the rate allows. The
+     * notification is built by the {@link NotificationRenderer} when it is posted, so updates
+     * replaced while waiting are never built.
+     *
+     * @param lastActivityTime time of the conversation's latest message, used for ordering
+     * @param unreadCount number of unread messages of the conversation, used for ordering
+     */
+    void notify(int notificationId, long lastActivityTime, int unreadCount,
+            Supplier<Notification> notification) {
+        long enqueueTime = mClock.getAsLong();
+        PendingUpdate previous = mPendingUpdates.get(notificationId);
+        if (previous != null) {
+            mMergedCount++;
+            // Wait times are measured from the first update the notification has been missing.
+            enqueueTime = previous.mEnqueueTime;
+        }
+        mPendingUpdates.put(notificationId, new PendingUpdate(notificationId, lastActivityTime,
+                unreadCount, enqueueTime, notification));
+        drain();
+    }
+
+    /** Cancels the notification, dropping any update of it that is still waiting. */
+    void cancel(int notificationId) {
+        if (mPendingUpdates.remove(notificationId) != null) {
+            mMergedCount++;
+        }
+        mNotificationRenderer.cancel(notificationId);
+    }
+
+    /** Returns the number of updates waiting to be posted. */
+    int getBacklogSize() {
+        return mPendingUpdates.size();
+    }
+
+    /** Drops all waiting updates. */
+    void shutdown() {
+        mHandler.removeCallbacks(mDrainRunnable);
+        mPendingUpdates.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NotificationScheduler{posted=%d, delayed=%d, merged=%d, "
+                        + "avgWaitMs=%d, maxWaitMs=%d, backlog=%d}",
+                mPostedCount, mDelayedCount, mMergedCount,
+                mDelayedCount == 0 ? 0 : mTotalWaitMs / mDelayedCount, mMaxWaitMs,
+                mPendingUpdates.size());
+    }
+
+    private void drain() {
+        mHandler.removeCallbacks(mDrainRunnable);
+        long now = mClock.getAsLong();
+        mTokens = Math.min(mBurstSize, mTokens + (now - mLastRefillTime) * mTokensPerMs);
+        mLastRefillTime = now;
+
+        boolean servedBacklog = false;
+        while (mTokens >= 1 && !mPendingUpdates.isEmpty()) {
+            PendingUpdate update = null;
+            for (PendingUpdate candidate : mPendingUpdates.values()) {
+                if (update == null || candidate.isMoreUrgentThan(update)) {
+                    update = candidate;
+                }
+            }
+            mPendingUpdates.remove(update.mNotificationId);
+            mTokens--;
+            post(update, now);
+            servedBacklog |= now > update.mEnqueueTime;
+        }
+
+        if (!mPendingUpdates.isEmpty()) {
+            long delayMs = (long) Math.ceil((1 - mTokens) / mTokensPerMs);
+            mHandler.postDelayed(mDrainRunnable, delayMs);
+        } else if (servedBacklog) {
+            L.d(TAG, "Backlog drained: %s", this);
+        }
+    }
+
+    private void post(PendingUpdate update, long now) {
+        long waitMs = now - update.mEnqueueTime;
+        mPostedCount++;
+        if (waitMs > 0) {
+            mDelayedCount++;
+            mTotalWaitMs += waitMs;
+            mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+        }
+        mNotificationRenderer.render(update.mNotificationId, update.mNotification);
+    }
+
+    private static class PendingUpdate {
+        final int mNotificationId;
+        final long mLastActivityTime;
+        final int mUnreadCount;
+        final long mEnqueueTime;
+        final Supplier<Notification> mNotification;
+
+        PendingUpdate(int notificationId, long lastActivityTime, int unreadCount,
+                long enqueueTime, Supplier<Notification> notification) {
+            mNotificationId = notificationId;
+            mLastActivityTime = lastActivityTime;
+            mUnreadCount = unreadCount;
+            mEnqueueTime = enqueueTime;
+            mNotification = notification;
+        }
+
+        boolean isMoreUrgentThan(PendingUpdate other) {
+            if (mLastActivityTime != other.mLastActivityTime) {
+                return mLastActivityTime > other.mLastActivityTime;
+            }
+            return mUnreadCount > other.mUnreadCount;
+        }
+    }
+}
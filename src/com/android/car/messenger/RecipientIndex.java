@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the phone numbers of senders to their active conversation, so that a reply to a number can
+ * be sent through the device the sender last wrote from.
+ * <p>
+ * Numbers are keyed by their E.164 form, or by their digits if they have none, and only match
+ * exactly: a reply must never reach a different person. This class is not thread-safe.
+ */
+class RecipientIndex {
+    private final String mCountryIso;
+    private final Map<String, SenderKey> mSenderKeys = new HashMap<>();
+
+    RecipientIndex(String countryIso) {
+        mCountryIso = countryIso;
+    }
+
+    /**
+     * Makes {@code senderKey} the conversation of the sender with {@code senderUri}, replacing
+     * the conversation it had on any other device.
+     */
+    void put(@Nullable String senderUri, SenderKey senderKey) {
+        String key = toKey(senderUri);
+        if (key != null) {
+            mSenderKeys.put(key, senderKey);
+        }
+    }
+
+    /** Removes the entry of {@code senderUri}, if it still points to {@code senderKey}. */
+    void remove(@Nullable String senderUri, SenderKey senderKey) {
+        String key = toKey(senderUri);
+        if (key != null) {
+            mSenderKeys.remove(key, senderKey);
+        }
+    }
+
+    /** Returns the conversation of the sender with phone number or URI {@code recipient}. */
+    @Nullable
+    SenderKey lookup(@Nullable String recipient) {
+        String key = toKey(recipient);
+        return key != null ? mSenderKeys.get(key) : null;
+    }
+
+    int size() {
+        return mSenderKeys.size();
+    }
+
+    @Nullable
+    private String toKey(@Nullable String senderUri) {
+        if (TextUtils.isEmpty(senderUri)) {
+            return null;
+        }
+        String number = ContactIndex.toPhoneNumber(senderUri);
+        String e164 = ContactIndex.toE164(number, mCountryIso);
+        if (e164 != null) {
+            return e164;
+        }
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (Character.isDigit(c)) {
+                digits.append(c);
+            }
+        }
+        return digits.length() > 0 ? digits.toString() : null;
+    }
+}
@@ -10,17 +10,12 @@ import android.os.Parcelable;
  */
 public class SenderKey extends CompositeKey implements Parcelable {
 
-    private SenderKey(String deviceAddress, String key) {
+    SenderKey(String deviceAddress, String key) {
         super(deviceAddress, key);
     }
 
     SenderKey(MapMessage message) {
-        // Use a combination of senderName and senderContactUri for key. Ideally we would use
-        // only senderContactUri (which is encoded phone no.). However since some phones don't
-        // provide these, we fall back to senderName. Since senderName may not be unique, we
-        // include senderContactUri also to provide uniqueness in cases it is available.
-        this(message.getDeviceAddress(),
-                message.getSenderName() + "/" + message.getSenderContactUri());
+        this(message.getDeviceAddress(), message.getSenderSubKey());
     }
 
     @Override
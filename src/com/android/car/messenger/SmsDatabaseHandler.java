@@ -1,57 +1,207 @@
 package com.android.car.messenger;
 
-
-import static com.android.car.messenger.MessengerDelegate.getContactId;
-
 import android.Manifest;
 import android.app.AppOpsManager;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.content.res.Resources.NotFoundException;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
+import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
 import com.android.car.messenger.log.L;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Reads and writes SMS Messages into the Telephony.SMS Database.
+ * <p>
+ * The app's own state lives in {@link ConversationStore}; this class only mirrors it into the
+ * Telephony provider for other apps. Writes are performed asynchronously, in order, on a single
+ * background thread, and are skipped if mirroring is disabled via config_mirrorToTelephony or the
+ * app lacks permission to write to the Telephony provider.
  */
 class SmsDatabaseHandler {
     private static final String TAG = "CM.SmsDatabaseHandler";
     private static final int MESSAGE_NOT_FOUND = -1;
     private static final int DUPLICATE_MESSAGES_FOUND = -2;
     private static final int DATABASE_ERROR = -3;
+    private static final long NO_THREAD_ID = -1;
     private static final Uri SMS_URI = Telephony.Sms.CONTENT_URI;
     private static final String SMS_SELECTION = Telephony.Sms.ADDRESS + "=? AND "
             + Telephony.Sms.BODY + "=? AND (" + Telephony.Sms.DATE + ">=? OR " + Telephony.Sms.DATE
             + "<=?)";
     private static final SimpleDateFormat DATE_FORMATTER = new SimpleDateFormat(
             "MMM dd,yyyy HH:mm");
+    // Telephony thread id per sender address. Shared with the compaction job, and cleared
+    // whenever rows are deleted, as the provider drops threads that become empty.
+    private static final Map<String, Long> sThreadIds = new ConcurrentHashMap<>();
 
+    private final Context mContext;
     private final ContentResolver mContentResolver;
-    private final boolean mCanWriteToDatabase;
+    private final ConversationStore mConversationStore;
+    private final ContactIndex mContactIndex;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final boolean mShouldMirror;
+    // Only accessed on mExecutor, where it is computed before any write runs.
+    private boolean mCanWriteToDatabase;
 
-    protected SmsDatabaseHandler(Context context) {
-        mCanWriteToDatabase = canWriteToDatabase(context);
+    protected SmsDatabaseHandler(Context context, ConversationStore conversationStore,
+            ContactIndex contactIndex) {
+        mShouldMirror = shouldMirrorToTelephony(context);
+        mContext = context;
         mContentResolver = context.getContentResolver();
-        readDatabase(context);
+        mConversationStore = conversationStore;
+        mContactIndex = contactIndex;
+        // The AppOps check and the debug dump are IPCs, keep them off the caller's thread.
+        mExecutor.execute(() -> {
+            mCanWriteToDatabase = mShouldMirror && canWriteToDatabase(context);
+            readDatabase(context);
+        });
     }
 
     protected void addOrUpdate(MapMessage message) {
-        if (!mCanWriteToDatabase) {
+        addOrUpdate(message, /* knownNew= */ false);
+    }
+
+    /**
+     * Mirrors {@code message} into the Telephony DB.
+     *
+     * @param knownNew true if the message is known not to be in the DB yet, which skips the query
+     *                 for existing copies
+     */
+    protected void addOrUpdate(MapMessage message, boolean knownNew) {
+        if (!mShouldMirror || getSenderAddress(message) == null) {
             return;
         }
 
+        // The message may still change on the calling thread, so mirror a snapshot of it.
+        MapMessage snapshot = message.copyOnHeap();
+        mExecutor.execute(() -> {
+            if (!mCanWriteToDatabase) {
+                return;
+            }
+            if (knownNew) {
+                insert(snapshot);
+            } else {
+                addOrUpdateInternal(snapshot);
+            }
+        });
+    }
+
+    /**
+     * Removes mirrored copies of messages removed from the {@link ConversationStore}, if the app
+     * mirrors messages at all. Blocks on the provider, so it must be called on a background
+     * thread.
+     *
+     * @param telephonyIds row ids of the mirrored messages, as recorded in the store. Messages
+     *                     whose mirroring is still queued are removed once their insert notices
+     *                     they no longer exist locally.
+     */
+    static void removeMirroredMessages(Context context, List<Long> telephonyIds) {
+        if (telephonyIds.isEmpty() || !shouldMirrorToTelephony(context)
+                || !canWriteToDatabase(context)) {
+            return;
+        }
+        ContentResolver contentResolver = context.getContentResolver();
+        for (List<Long> chunk : ConversationStore.chunk(telephonyIds)) {
+            contentResolver.delete(SMS_URI, selectIds(chunk.size()), toSelectionArgs(chunk));
+        }
+        sThreadIds.clear();
+    }
+
+    /**
+     * Marks {@code messages}, all received from {@code deviceAddress}, as read in the Telephony DB.
+     * Row ids are resolved once through the {@link ConversationStore}, and rows are updated with
+     * one statement per {@link ConversationStore#MAX_IN_PARAMETERS} rows.
+     */
+    protected void markAsRead(String deviceAddress, List<MapMessage> messages) {
+        if (!mShouldMirror || messages.isEmpty()) {
+            return;
+        }
+
+        List<MapMessage> snapshots = new ArrayList<>(messages.size());
+        for (MapMessage message : messages) {
+            snapshots.add(message.copyOnHeap());
+        }
+        mExecutor.execute(() -> {
+            if (!mCanWriteToDatabase) {
+                return;
+            }
+            List<String> handles = new ArrayList<>(snapshots.size());
+            for (MapMessage message : snapshots) {
+                handles.add(message.getHandle());
+            }
+            // Runs after any queued insert, so all mirrored messages have their row id by now.
+            Map<String, Long> telephonyIds =
+                    mConversationStore.getTelephonyIds(deviceAddress, handles);
+            List<Long> rowIds = new ArrayList<>(telephonyIds.size());
+            for (MapMessage message : snapshots) {
+                Long rowId = telephonyIds.get(message.getHandle());
+                if (rowId != null) {
+                    rowIds.add(rowId);
+                } else if (getSenderAddress(message) != null) {
+                    addOrUpdateInternal(message);
+                }
+            }
+            ContentValues values = new ContentValues();
+            values.put(Telephony.Sms.READ, true);
+            for (List<Long> chunk : ConversationStore.chunk(rowIds)) {
+                mContentResolver.update(SMS_URI, values, selectIds(chunk.size()),
+                        toSelectionArgs(chunk));
+            }
+        });
+    }
+
+    /** Returns a selection of the rows with {@code count} given ids. */
+    private static String selectIds(int count) {
+        return BaseColumns._ID + " IN (" + ConversationStore.makePlaceholders(count) + ")";
+    }
+
+    private static String[] toSelectionArgs(List<Long> ids) {
+        String[] selectionArgs = new String[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            selectionArgs[i] = Long.toString(ids.get(i));
+        }
+        return selectionArgs;
+    }
+
+    /** Logs recently received messages on the background thread, see {@link #readDatabase}. */
+    protected void logRecentMessages(Context context) {
+        mExecutor.execute(() -> readDatabase(context));
+    }
+
+    /**
+     * Forgets the Telephony threads resolved so far, e.g. when a device is dropped, as their
+     * rows may be deleted while the device is away.
+     */
+    protected void clearThreadIds() {
+        sThreadIds.clear();
+    }
+
+    /** Stops accepting new writes. Writes already queued are still performed. */
+    protected void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void addOrUpdateInternal(MapMessage message) {
         int messageIndex = findMessageIndex(message);
         switch(messageIndex) {
             case DUPLICATE_MESSAGES_FOUND:
@@ -60,25 +210,16 @@ class SmsDatabaseHandler {
                         message.toString());
                 return;
             case MESSAGE_NOT_FOUND:
-                mContentResolver.insert(SMS_URI, buildMessageContentValues(message));
+                insert(message);
                 return;
             case DATABASE_ERROR:
                 return;
             default:
                 update(messageIndex, buildMessageContentValues(message));
+                recordTelephonyId(message, messageIndex);
         }
     }
 
-    protected void removeMessagesForDevice(String address) {
-        if (!mCanWriteToDatabase) {
-            return;
-        }
-
-        String smsSelection = Telephony.Sms.ADDRESS + "=?";
-        String[] smsSelectionArgs = {address};
-        mContentResolver.delete(SMS_URI, smsSelection, smsSelectionArgs);
-    }
-
     /**
      * Reads the Telephony SMS Database, and logs all of the SMS messages that have been received
      * in the last five minutes.
@@ -120,7 +261,26 @@ class SmsDatabaseHandler {
         String[] smsSelectionArgs = createSmsSelectionArgs(message);
 
         mContentResolver.delete(SMS_URI, SMS_SELECTION, smsSelectionArgs);
-        mContentResolver.insert(SMS_URI, buildMessageContentValues(message));
+        sThreadIds.clear();
+        insert(message);
+    }
+
+    private void insert(MapMessage message) {
+        Uri uri = mContentResolver.insert(SMS_URI, buildMessageContentValues(message));
+        if (uri != null) {
+            recordTelephonyId(message, ContentUris.parseId(uri));
+        }
+    }
+
+    /**
+     * Links the mirrored row to the local message. If the local message was removed while its
+     * mirroring was queued, the mirrored row is removed as well.
+     */
+    private void recordTelephonyId(MapMessage message, long telephonyId) {
+        if (!mConversationStore.setTelephonyId(message.getDeviceAddress(), message.getHandle(),
+                telephonyId)) {
+            delete(telephonyId);
+        }
     }
 
     private int findMessageIndex(MapMessage message) {
@@ -158,30 +318,88 @@ class SmsDatabaseHandler {
         mContentResolver.update(SMS_URI, value, smsSelection, smsSelectionArgs);
     }
 
+    private void delete(long messageIndex) {
+        final String smsSelection = BaseColumns._ID + "=?";
+        String[] smsSelectionArgs = {Long.toString(messageIndex)};
+
+        mContentResolver.delete(SMS_URI, smsSelection, smsSelectionArgs);
+        sThreadIds.clear();
+    }
+
     /** Create the ContentValues object using message info, following SMS columns **/
     private ContentValues buildMessageContentValues(MapMessage message) {
         ContentValues newMessage = new ContentValues();
         newMessage.put(Telephony.Sms.BODY, DatabaseUtils.sqlEscapeString(message.getMessageText()));
         newMessage.put(Telephony.Sms.DATE, message.getReceiveTime());
-        newMessage.put(Telephony.Sms.ADDRESS, message.getDeviceAddress());
+        String senderAddress = getSenderAddress(message);
+        newMessage.put(Telephony.Sms.ADDRESS, senderAddress);
+        long threadId = getThreadId(senderAddress);
+        if (threadId != NO_THREAD_ID) {
+            newMessage.put(Telephony.Sms.THREAD_ID, threadId);
+        }
         // TODO: if contactId is null, add it.
-        newMessage.put(Telephony.Sms.PERSON,
-                getContactId(mContentResolver,
-                        message.getSenderContactUri()));
+        ContactIndex.Contact contact = mContactIndex.lookup(message.getSenderContactUri());
+        newMessage.put(Telephony.Sms.PERSON, contact != null ? contact.getContactId() : 0);
         newMessage.put(Telephony.Sms.READ, (message.isReadOnPhone() || message.isReadOnCar()));
         return newMessage;
     }
 
     private String[] createSmsSelectionArgs(MapMessage message) {
         String sqlFriendlyMessageText = DatabaseUtils.sqlEscapeString(message.getMessageText());
-        String[] smsSelectionArgs = {message.getDeviceAddress(), sqlFriendlyMessageText,
+        String[] smsSelectionArgs = {getSenderAddress(message), sqlFriendlyMessageText,
                 Long.toString(message.getReceiveTime() - 5000), Long.toString(
                 message.getReceiveTime() + 5000)};
         return smsSelectionArgs;
     }
 
+    /**
+     * Returns the sender's phone number, taken from the sender contact URI (e.g. "tel:+1555..."),
+     * or {@code null} if the phone did not provide one. Such messages are not mirrored, as their
+     * Telephony thread would be keyed by the sender's name.
+     */
+    @Nullable
+    private static String getSenderAddress(MapMessage message) {
+        String contactUri = message.getSenderContactUri();
+        if (!TextUtils.isEmpty(contactUri)) {
+            String address = Uri.parse(contactUri).getSchemeSpecificPart();
+            if (!TextUtils.isEmpty(address)) {
+                return address;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Telephony thread of {@code senderAddress}, resolving it through the provider only
+     * for the first message of each conversation.
+     */
+    private long getThreadId(String senderAddress) {
+        Long threadId = sThreadIds.get(senderAddress);
+        if (threadId == null) {
+            try {
+                threadId = Telephony.Threads.getOrCreateThreadId(mContext, senderAddress);
+            } catch (IllegalArgumentException e) {
+                L.w(TAG, "Unable to resolve thread for %s", senderAddress);
+                return NO_THREAD_ID;
+            }
+            sThreadIds.put(senderAddress, threadId);
+        }
+        return threadId;
+    }
+
+    /** Checks if messages should be mirrored into the Telephony DB at all. **/
+    private static boolean shouldMirrorToTelephony(Context context) {
+        try {
+            return context.getResources().getBoolean(R.bool.config_mirrorToTelephony);
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests
+            L.e(TAG, e, "Could not find mirrorToTelephony config");
+            return true;
+        }
+    }
+
     /** Checks if the application has the needed AppOps permission to write to the Telephony DB. **/
-    private boolean canWriteToDatabase(Context context) {
+    private static boolean canWriteToDatabase(Context context) {
         boolean granted = ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_SMS)
                 == PackageManager.PERMISSION_GRANTED;
 
@@ -27,6 +27,10 @@ public class SmsReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        // The service does not act on this broadcast, so only make sure it is running.
+        if (MessengerService.isRunning()) {
+            return;
+        }
         Intent startIntent = new Intent(context, MessengerService.class)
                 .setAction(MessengerService.ACTION_RECEIVED_SMS);
         context.startForegroundService(startIntent);
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.car.messenger.log.L;
+
+/**
+ * Records how long the phases of {@link MessengerService} startup take, measured both from the
+ * start of the process and from {@link MessengerService#onCreate()}.
+ */
+class StartupMetrics {
+    private static final String TAG = "CM.StartupMetrics";
+
+    static final String PHASE_FOREGROUND = "foreground";
+    static final String PHASE_DELEGATE = "delegate";
+    static final String PHASE_RESTORE = "restore";
+    static final String PHASE_BLUETOOTH = "bluetooth";
+    static final String PHASE_READY = "ready";
+
+    private final long mProcessStartTime = Process.getStartElapsedRealtime();
+    private final long mCreateTime = SystemClock.elapsedRealtime();
+    private long mReadyTime;
+    private boolean mFirstMessageRecorded;
+
+    /** Records that {@code phase} has completed. */
+    void markPhase(String phase) {
+        long now = SystemClock.elapsedRealtime();
+        if (PHASE_READY.equals(phase)) {
+            mReadyTime = now;
+        }
+        L.d(TAG, "Phase %s done: onCreate +%d ms, process start +%d ms", phase,
+                now - mCreateTime, now - mProcessStartTime);
+    }
+
+    /** Records the arrival of a message; only the first one after startup is reported. */
+    void markMessageReceived() {
+        if (mFirstMessageRecorded) {
+            return;
+        }
+        mFirstMessageRecorded = true;
+        long now = SystemClock.elapsedRealtime();
+        L.d(TAG, "First message: onCreate +%d ms, ready +%d ms", now - mCreateTime,
+                mReadyTime == 0 ? -1 : now - mReadyTime);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger;
+
+import android.util.AtomicFile;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.car.messenger.MessengerDelegate.MessageKey;
+import com.android.car.messenger.MessengerDelegate.NotificationInfo;
+import com.android.car.messenger.log.L;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compact binary snapshot of {@link MessengerDelegate}'s in-memory state, used to restore it after
+ * the process was killed.
+ * <p>
+ * Snapshots are encoded on the calling thread and written atomically on a background thread, so a
+ * crash mid-write never leaves a corrupt file behind. Restoring memory-maps the file instead of
+ * streaming it.
+ */
+class StateSnapshot {
+    private static final String TAG = "CM.StateSnapshot";
+    private static final String FILE_NAME = "messenger_state.bin";
+    private static final int MAGIC = 0x434d5353; // "CMSS"
+    private static final int VERSION = 1;
+    private static final int NULL_STRING = -1;
+
+    private final AtomicFile mFile;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    StateSnapshot(File directory) {
+        mFile = new AtomicFile(new File(directory, FILE_NAME));
+    }
+
+    /** Receives the state read by {@link #restore(Callback)}. */
+    interface Callback {
+        void onConnectionTimestamp(String deviceAddress, long timestamp);
+
+        void onMessage(MapMessage message);
+
+        /** Called for each conversation, after all messages have been restored. */
+        void onNotificationInfo(SenderKey senderKey, NotificationInfo notificationInfo);
+    }
+
+    /**
+     * State read by {@link #read()}, which can be handed over to the thread that restores it.
+     */
+    static class Contents implements Callback {
+        private final Map<String, Long> mConnectionTimestamps = new LinkedHashMap<>();
+        private final List<MapMessage> mMessages = new ArrayList<>();
+        private final Map<SenderKey, NotificationInfo> mNotificationInfos = new LinkedHashMap<>();
+
+        @Override
+        public void onConnectionTimestamp(String deviceAddress, long timestamp) {
+            mConnectionTimestamps.put(deviceAddress, timestamp);
+        }
+
+        @Override
+        public void onMessage(MapMessage message) {
+            mMessages.add(message);
+        }
+
+        @Override
+        public void onNotificationInfo(SenderKey senderKey, NotificationInfo notificationInfo) {
+            mNotificationInfos.put(senderKey, notificationInfo);
+        }
+
+        /** Reports the contents to {@code callback}, in the order they were read. */
+        void replay(Callback callback) {
+            mConnectionTimestamps.forEach(callback::onConnectionTimestamp);
+            mMessages.forEach(callback::onMessage);
+            mNotificationInfos.forEach(callback::onNotificationInfo);
+        }
+    }
+
+    /** Encodes the given state, and writes it to disk asynchronously. */
+    void save(Map<String, Long> connectionTimestamps, Map<MessageKey, MapMessage> messages,
+            Map<SenderKey, NotificationInfo> notificationInfos) {
+        final byte[] data;
+        try {
+            data = encode(connectionTimestamps, messages, notificationInfos);
+        } catch (IOException e) {
+            L.e(TAG, e, "Unable to encode state snapshot");
+            return;
+        }
+        mExecutor.execute(() -> {
+            FileOutputStream out = null;
+            try {
+                out = mFile.startWrite();
+                out.write(data);
+                mFile.finishWrite(out);
+            } catch (IOException e) {
+                L.e(TAG, e, "Unable to write state snapshot");
+                mFile.failWrite(out);
+            }
+        });
+    }
+
+    /** Deletes any existing snapshot. */
+    void clear() {
+        mExecutor.execute(mFile::delete);
+    }
+
+    /** Blocks until all pending writes and deletions are done. */
+    @VisibleForTesting
+    void awaitPendingWrites() throws InterruptedException, ExecutionException {
+        mExecutor.submit(() -> {}).get();
+    }
+
+    /**
+     * Reads the latest snapshot, e.g. on a background thread, to restore it later.
+     *
+     * @return the contents of the snapshot, or {@code null} if there is none
+     */
+    @Nullable
+    Contents read() {
+        Contents contents = new Contents();
+        return restore(contents) ? contents : null;
+    }
+
+    /**
+     * Reads the latest snapshot and reports its contents to {@code callback}.
+     *
+     * @return {@code true} if a snapshot was restored
+     */
+    boolean restore(Callback callback) {
+        try (FileInputStream in = mFile.openRead();
+             FileChannel channel = in.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            decode(buffer, callback);
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | IllegalStateException e) {
+            L.e(TAG, e, "Discarding unreadable state snapshot");
+            mFile.delete();
+            return false;
+        }
+    }
+
+    private static byte[] encode(Map<String, Long> connectionTimestamps,
+            Map<MessageKey, MapMessage> messages,
+            Map<SenderKey, NotificationInfo> notificationInfos) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeInt(connectionTimestamps.size());
+        for (Map.Entry<String, Long> entry : connectionTimestamps.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+
+        out.writeInt(messages.size());
+        for (MapMessage message : messages.values()) {
+            writeString(out, message.getDeviceAddress());
+            writeString(out, message.getHandle());
+            writeString(out, message.getSenderName());
+            writeString(out, message.getSenderContactUri());
+            writeString(out, message.getMessageText());
+            out.writeLong(message.getReceiveTime());
+            out.writeBoolean(message.isReadOnPhone());
+            out.writeBoolean(message.isReadOnCar());
+        }
+
+        out.writeInt(notificationInfos.size());
+        for (Map.Entry<SenderKey, NotificationInfo> entry : notificationInfos.entrySet()) {
+            NotificationInfo info = entry.getValue();
+            writeString(out, entry.getKey().getDeviceAddress());
+            writeString(out, entry.getKey().getSubKey());
+            writeString(out, info.mSenderName);
+            writeString(out, info.mSenderContactUri);
+            out.writeInt(info.mNotificationId);
+            out.writeInt(info.mMessageKeys.size());
+            for (MessageKey key : info.mMessageKeys) {
+                writeString(out, key.getSubKey());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void decode(ByteBuffer in, Callback callback) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IllegalStateException("Unknown snapshot format");
+        }
+
+        int timestampCount = in.getInt();
+        for (int i = 0; i < timestampCount; i++) {
+            callback.onConnectionTimestamp(readString(in), in.getLong());
+        }
+
+        int messageCount = in.getInt();
+        for (int i = 0; i < messageCount; i++) {
+            callback.onMessage(MapMessage.restore(
+                    readString(in),
+                    readString(in),
+                    readString(in),
+                    readString(in),
+                    readString(in),
+                    in.getLong(),
+                    in.get() != 0,
+                    in.get() != 0));
+        }
+
+        int notificationCount = in.getInt();
+        for (int i = 0; i < notificationCount; i++) {
+            SenderKey senderKey = new SenderKey(readString(in), readString(in));
+            NotificationInfo info = new NotificationInfo(readString(in), readString(in),
+                    in.getInt());
+            int keyCount = in.getInt();
+            for (int j = 0; j < keyCount; j++) {
+                info.mMessageKeys.add(
+                        new MessageKey(senderKey.getDeviceAddress(), readString(in)));
+            }
+            callback.onNotificationInfo(senderKey, info);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalStateException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
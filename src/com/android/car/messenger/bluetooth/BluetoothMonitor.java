@@ -10,7 +10,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources.NotFoundException;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
@@ -19,6 +22,7 @@ import com.android.car.messenger.R;
 import com.android.car.messenger.log.L;
 
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 
 
@@ -27,17 +31,44 @@ import java.util.Set;
  */
 public class BluetoothMonitor {
     private static final String TAG = "CM.BluetoothMonitor";
+    private static final int DEFAULT_MAP_RECONNECT_INITIAL_DELAY_MS = 1000;
+    private static final int DEFAULT_MAP_RECONNECT_MAX_DELAY_MS = 60000;
+
+    // States of the connection to the MAP service.
+    private static final int MAP_DISCONNECTED = 0;
+    // A proxy is requested; it connects once the service is bound, which may be much later if
+    // Bluetooth is off. Requesting another one meanwhile would only add a duplicate proxy.
+    private static final int MAP_CONNECTING = 1;
+    private static final int MAP_CONNECTED = 2;
+    private static final int MAP_WAITING_TO_RECONNECT = 3;
 
     private final Context mContext;
     private final BluetoothMapReceiver mBluetoothMapReceiver;
     private final BluetoothSdpReceiver mBluetoothSdpReceiver;
     private final MapDeviceMonitor mMapDeviceMonitor;
     private final BluetoothProfile.ServiceListener mMapServiceListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mReconnectRunnable = this::onReconnectDelayElapsed;
+    private final boolean mReconnectToMap;
+    private final ReconnectBackoff mReconnectBackoff;
 
     private final Set<OnBluetoothEventListener> mListeners;
 
+    private int mMapState = MAP_DISCONNECTED;
+    private long mMapConnectedTime;
+    private int mConnectAttemptCount;
+    private int mDuplicateConnectCount;
+    private int mOutageCount;
+
     public BluetoothMonitor(@NonNull Context context) {
         mContext = context;
+        mReconnectToMap = getReconnectToMap(context);
+        mReconnectBackoff = new ReconnectBackoff(
+                getInteger(context, R.integer.config_mapReconnectInitialDelayMs,
+                        DEFAULT_MAP_RECONNECT_INITIAL_DELAY_MS),
+                getInteger(context, R.integer.config_mapReconnectMaxDelayMs,
+                        DEFAULT_MAP_RECONNECT_MAX_DELAY_MS),
+                new Random());
 
         mBluetoothMapReceiver = new BluetoothMapReceiver();
         mBluetoothSdpReceiver = new BluetoothSdpReceiver();
@@ -150,30 +181,50 @@ public class BluetoothMonitor {
     }
 
     private void onMapConnected(BluetoothMapClient client) {
+        mHandler.removeCallbacks(mReconnectRunnable);
+        if (mMapState != MAP_CONNECTED) {
+            mMapState = MAP_CONNECTED;
+            mMapConnectedTime = SystemClock.elapsedRealtime();
+        }
         mListeners.forEach(listener -> listener.onMapConnected(client));
     }
 
     private void onMapDisconnected(int profile) {
-        mListeners.forEach(listener -> listener.onMapDisconnected(profile));
-        boolean shouldReconnectToMap = false;
-        try {
-            shouldReconnectToMap = mContext.getResources().getBoolean(
-                    R.bool.config_loadExistingMessages);
-        } catch (NotFoundException e) {
-            // Should only happen for robolectric unit tests
-            L.e(TAG, e, "Could not find loadExistingMessages config");
+        if (mMapState == MAP_CONNECTED) {
+            mOutageCount++;
+            // Only a connection that held for a while resets the backoff, so that a flapping
+            // service is retried less and less often.
+            if (mReconnectBackoff.isStable(SystemClock.elapsedRealtime() - mMapConnectedTime)) {
+                mReconnectBackoff.reset();
+            }
         }
-        if (shouldReconnectToMap) {
-            connectToMap();
+        mMapState = MAP_DISCONNECTED;
+        mListeners.forEach(listener -> listener.onMapDisconnected(profile));
+        if (mReconnectToMap) {
+            long delayMs = mReconnectBackoff.nextDelayMs();
+            L.d(TAG, "Reconnecting to MAP service in %d ms", delayMs);
+            mMapState = MAP_WAITING_TO_RECONNECT;
+            mHandler.removeCallbacks(mReconnectRunnable);
+            mHandler.postDelayed(mReconnectRunnable, delayMs);
         }
     }
 
+    private void onReconnectDelayElapsed() {
+        mMapState = MAP_DISCONNECTED;
+        connectToMap();
+    }
+
     private void onSdpRecord(BluetoothDevice device, boolean supportsReply) {
         mListeners.forEach(listener -> listener.onSdpRecord(device, supportsReply));
     }
 
-    /** Connects to the MAP client. */
+    /** Connects to the MAP client, unless connected, connecting or waiting to reconnect. */
     private void connectToMap() {
+        if (mMapState != MAP_DISCONNECTED) {
+            mDuplicateConnectCount++;
+            L.d(TAG, "Not connecting to MAP service, state: %d", mMapState);
+            return;
+        }
         L.d(TAG, "Connecting to MAP service");
 
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
@@ -183,17 +234,44 @@ public class BluetoothMonitor {
             return;
         }
 
+        mConnectAttemptCount++;
         if (!adapter.getProfileProxy(mContext, mMapServiceListener, BluetoothProfile.MAP_CLIENT)) {
             // This *should* never happen.  Unless arguments passed are incorrect somehow...
             L.wtf(TAG, "Unable to get MAP profile!");
             return;
         }
+        // The listener may already have been called.
+        if (mMapState == MAP_DISCONNECTED) {
+            mMapState = MAP_CONNECTING;
+        }
+    }
+
+    private static boolean getReconnectToMap(Context context) {
+        try {
+            return context.getResources().getBoolean(R.bool.config_reconnectToMap);
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests
+            L.e(TAG, e, "Could not find reconnectToMap config");
+            return true;
+        }
+    }
+
+    private static int getInteger(Context context, int resId, int defaultValue) {
+        try {
+            return context.getResources().getInteger(resId);
+        } catch (NotFoundException e) {
+            // Should only happen for robolectric unit tests
+            L.e(TAG, e, "Could not find config %d", resId);
+            return defaultValue;
+        }
     }
 
     /**
      * Performs {@link Context} related cleanup (such as unregistering from receivers).
      */
     public void cleanup() {
+        L.d(TAG, "MAP connection stats: %s", this);
+        mHandler.removeCallbacks(mReconnectRunnable);
         mListeners.clear();
         mBluetoothMapReceiver.unregisterReceivers();
         mBluetoothSdpReceiver.unregisterReceivers();
@@ -205,6 +283,18 @@ public class BluetoothMonitor {
         return mMapServiceListener;
     }
 
+    @VisibleForTesting
+    int getConnectAttemptCount() {
+        return mConnectAttemptCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BluetoothMonitor{mapState=%d, connectAttempts=%d, "
+                        + "duplicateConnects=%d, outages=%d}",
+                mMapState, mConnectAttemptCount, mDuplicateConnectCount, mOutageCount);
+    }
+
     /** Monitors for new device connections and disconnections */
     private class MapDeviceMonitor extends BroadcastReceiver {
         MapDeviceMonitor() {
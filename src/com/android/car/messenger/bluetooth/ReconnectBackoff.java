@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.messenger.bluetooth;
+
+import java.util.Random;
+
+/**
+ * Computes the delays between successive reconnection attempts: each one doubles, from
+ * {@code initialDelayMs} up to {@code maxDelayMs}, and is randomized to between half and all of
+ * that, so that clients recovering from the same outage don't retry in lockstep.
+ */
+class ReconnectBackoff {
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom;
+    private int mAttempt;
+
+    ReconnectBackoff(long initialDelayMs, long maxDelayMs, Random random) {
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = Math.max(initialDelayMs, maxDelayMs);
+        mRandom = random;
+    }
+
+    /** Returns the delay before the next attempt, and backs off further for the one after. */
+    long nextDelayMs() {
+        long delayMs = mInitialDelayMs;
+        for (int i = 0; i < mAttempt && delayMs < mMaxDelayMs; i++) {
+            delayMs *= 2;
+        }
+        delayMs = Math.min(delayMs, mMaxDelayMs);
+        mAttempt++;
+        long halfDelayMs = delayMs / 2;
+        return delayMs - halfDelayMs + (long) (mRandom.nextDouble() * halfDelayMs);
+    }
+
+    /** Returns whether a connection that lasted {@code durationMs} counts as recovered. */
+    boolean isStable(long durationMs) {
+        return durationMs >= mMaxDelayMs;
+    }
+
+    /** Starts over from the initial delay. */
+    void reset() {
+        mAttempt = 0;
+    }
+}
@@ -0,0 +1,193 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+@RunWith(RobolectricTestRunner.class)
+public class ContactIndexTest {
+
+    private Locale mDefaultLocale;
+    private ContactIndex mContactIndex;
+
+    @Before
+    public void setUp() {
+        mDefaultLocale = Locale.getDefault();
+        Locale.setDefault(Locale.US);
+        FakeContactsProvider.sPhones.clear();
+        FakeContactsProvider.sPhoneLookupRows.clear();
+        FakeContactsProvider.sPhonesQueryAllowed = new CountDownLatch(0);
+        Robolectric.buildContentProvider(FakeContactsProvider.class)
+                .create(ContactsContract.AUTHORITY);
+    }
+
+    @After
+    public void tearDown() {
+        FakeContactsProvider.sPhonesQueryAllowed.countDown();
+        if (mContactIndex != null) {
+            mContactIndex.shutdown();
+        }
+        Locale.setDefault(mDefaultLocale);
+    }
+
+    @Test
+    public void testToSuffix_ignoresFormatting() {
+        assertThat(ContactIndex.toSuffix("+1 (650) 555-0100")).isEqualTo("5550100");
+        assertThat(ContactIndex.toSuffix("6505550100")).isEqualTo("5550100");
+        assertThat(ContactIndex.toSuffix("555.0100")).isEqualTo("5550100");
+    }
+
+    @Test
+    public void testToSuffix_tooFewDigits() {
+        assertThat(ContactIndex.toSuffix("55501")).isNull();
+        assertThat(ContactIndex.toSuffix("Alex Smith")).isNull();
+        assertThat(ContactIndex.toSuffix(null)).isNull();
+    }
+
+    @Test
+    public void testLookup_byE164() throws Exception {
+        addPhone(1, "(650) 555-0100", "+16505550100", "Alice");
+        addPhone(2, "(415) 555-0199", "+14155550199", "Bob");
+        createLoadedIndex();
+
+        assertThat(mContactIndex.lookup("tel:+16505550100").getContactId()).isEqualTo(1);
+        assertThat(mContactIndex.lookup("+1 415-555-0199").getDisplayName()).isEqualTo("Bob");
+    }
+
+    @Test
+    public void testLookup_sameNumber_lowestContactIdWins() throws Exception {
+        addPhone(1, "(650) 555-0100", "+16505550100", "Alice");
+        addPhone(2, "650-555-0100", "+16505550100", "Alice (work)");
+        createLoadedIndex();
+
+        assertThat(mContactIndex.lookup("tel:+16505550100").getContactId()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLookup_fallsBackToSuffix() throws Exception {
+        addPhone(1, "555-0100", null, "Alice");
+        createLoadedIndex();
+
+        ContactIndex.Contact contact = mContactIndex.lookup("tel:+16505550100");
+
+        assertThat(contact).isNotNull();
+        assertThat(contact.getContactId()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLookup_ambiguousSuffix_returnsNull() throws Exception {
+        addPhone(1, "(650) 555-0100", "+16505550100", "Alice");
+        addPhone(2, "(415) 555-0100", "+14155550100", "Bob");
+        createLoadedIndex();
+
+        assertThat(mContactIndex.lookup("tel:+12125550100")).isNull();
+        assertThat(mContactIndex.lookup("tel:+14155550100").getContactId()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLookup_unknownOrEmptyNumber_returnsNull() throws Exception {
+        addPhone(1, "(650) 555-0100", "+16505550100", "Alice");
+        createLoadedIndex();
+
+        assertThat(mContactIndex.lookup("tel:+16505550111")).isNull();
+        assertThat(mContactIndex.lookup("")).isNull();
+        assertThat(mContactIndex.lookup(null)).isNull();
+    }
+
+    @Test
+    public void testLookup_beforeFirstLoad_usesPhoneLookup() throws Exception {
+        FakeContactsProvider.sPhonesQueryAllowed = new CountDownLatch(1);
+        FakeContactsProvider.sPhoneLookupRows.add(new Object[]{7L, "Carol", null});
+        mContactIndex = new ContactIndex(RuntimeEnvironment.application);
+
+        ContactIndex.Contact contact = mContactIndex.lookup("tel:+16505550100");
+
+        assertThat(contact).isNotNull();
+        assertThat(contact.getContactId()).isEqualTo(7);
+        assertThat(contact.getDisplayName()).isEqualTo("Carol");
+    }
+
+    private void createLoadedIndex() throws Exception {
+        mContactIndex = new ContactIndex(RuntimeEnvironment.application);
+        mContactIndex.awaitPendingLoads();
+    }
+
+    private static void addPhone(long contactId, String number, @Nullable String normalizedNumber,
+            String displayName) {
+        FakeContactsProvider.sPhones.add(
+                new Object[]{contactId, number, normalizedNumber, displayName, null});
+    }
+
+    /** Serves phone rows and PhoneLookup results from static test data. */
+    public static class FakeContactsProvider extends ContentProvider {
+        static final List<Object[]> sPhones = new ArrayList<>();
+        static final List<Object[]> sPhoneLookupRows = new ArrayList<>();
+        // Holds back the query of all phone numbers, i.e. the first load of the index.
+        static volatile CountDownLatch sPhonesQueryAllowed = new CountDownLatch(0);
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (uri.toString().startsWith(Phone.CONTENT_URI.toString())) {
+                try {
+                    sPhonesQueryAllowed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sPhones.forEach(cursor::addRow);
+            } else if (uri.toString().startsWith(
+                    ContactsContract.PhoneLookup.CONTENT_FILTER_URI.toString())) {
+                sPhoneLookupRows.forEach(cursor::addRow);
+            }
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.app.AppOpsManager;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothMapClient;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Build.VERSION_CODES;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowBluetoothAdapter;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = {ShadowBluetoothAdapter.class}, sdk = {
+        VERSION_CODES.O})
+public class ConversationProviderTest {
+
+    private static final String BLUETOOTH_ADDRESS = "FA:F8:14:CA:32:39";
+
+    @Mock
+    private BluetoothDevice mMockBluetoothDevice;
+    @Mock
+    private AppOpsManager mMockAppOpsManager;
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private MessengerDelegate mMessengerDelegate;
+    private ConversationProvider mProvider;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mMockAppOpsManager.checkOpNoThrow(anyInt(), anyInt(), anyString())).thenReturn(
+                AppOpsManager.MODE_DEFAULT);
+        Shadows.shadowOf(RuntimeEnvironment.application)
+                .setSystemService(Context.APP_OPS_SERVICE, mMockAppOpsManager);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(BLUETOOTH_ADDRESS);
+
+        mMessengerDelegate = new MessengerDelegate(mContext);
+        mMessengerDelegate.onDeviceConnected(mMockBluetoothDevice);
+        ConversationProvider.setDelegate(mMessengerDelegate);
+        mProvider = Robolectric.buildContentProvider(ConversationProvider.class)
+                .create(ConversationProvider.AUTHORITY).get();
+    }
+
+    @After
+    public void tearDown() {
+        ConversationProvider.setDelegate(null);
+    }
+
+    @Test
+    public void testQueryMessages_returnsProjectedColumnsNewestFirst() {
+        long timestamp = System.currentTimeMillis() + 10000L;
+        Intent first = createMessageIntent("h1", "Hello", timestamp);
+        mMessengerDelegate.onMessageReceived(first);
+        mMessengerDelegate.onMessageReceived(createMessageIntent("h2", "Bye", timestamp + 1));
+        SenderKey senderKey = new SenderKey(MapMessage.parseFrom(first));
+
+        try (Cursor cursor = mProvider.query(ConversationProvider.getMessagesUri(senderKey),
+                new String[]{ConversationProvider.MessageColumns.HANDLE,
+                        ConversationProvider.MessageColumns.BODY},
+                null /* selection */, null /* selectionArgs */, null /* sortOrder */)) {
+            assertThat(cursor.getCount()).isEqualTo(2);
+            assertThat(cursor.getColumnNames()).asList().containsExactly(
+                    ConversationProvider.MessageColumns.HANDLE,
+                    ConversationProvider.MessageColumns.BODY).inOrder();
+            assertThat(cursor.moveToFirst()).isTrue();
+            assertThat(cursor.getString(0)).isEqualTo("h2");
+            assertThat(cursor.getString(1)).isEqualTo("Bye");
+            assertThat(cursor.moveToNext()).isTrue();
+            assertThat(cursor.getString(0)).isEqualTo("h1");
+            assertThat(cursor.getString(1)).isEqualTo("Hello");
+        }
+    }
+
+    @Test
+    public void testQueryMessages_unknownConversation_isEmpty() {
+        SenderKey senderKey = new SenderKey(BLUETOOTH_ADDRESS, "nobody/000");
+
+        try (Cursor cursor = mProvider.query(ConversationProvider.getMessagesUri(senderKey),
+                null /* projection */, null /* selection */, null /* selectionArgs */,
+                null /* sortOrder */)) {
+            assertThat(cursor.getCount()).isEqualTo(0);
+        }
+    }
+
+    private Intent createMessageIntent(String handle, String messageText, long timestamp) {
+        Intent intent = new Intent();
+        intent.setAction(BluetoothMapClient.ACTION_MESSAGE_RECEIVED);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mMockBluetoothDevice);
+        intent.putExtra(BluetoothMapClient.EXTRA_MESSAGE_HANDLE, handle);
+        intent.putExtra(BluetoothMapClient.EXTRA_SENDER_CONTACT_URI, "510-111-2222");
+        intent.putExtra(BluetoothMapClient.EXTRA_SENDER_CONTACT_NAME, "testSender");
+        intent.putExtra(BluetoothMapClient.EXTRA_MESSAGE_READ_STATUS, false);
+        intent.putExtra(Intent.EXTRA_TEXT, messageText);
+        intent.putExtra(BluetoothMapClient.EXTRA_MESSAGE_TIMESTAMP, timestamp);
+        return intent;
+    }
+}
@@ -0,0 +1,207 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConversationStoreTest {
+
+    private static final String DEVICE_ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+    private ConversationStore mStore;
+
+    @Before
+    public void setUp() {
+        mStore = new ConversationStore(RuntimeEnvironment.application);
+        mStore.getActiveSession(DEVICE_ADDRESS);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    @Test
+    public void testAddOrUpdate_sameSessionUpdatesRow() {
+        mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L));
+        mStore.addOrUpdate(message("1", "Alice", "Hi again", 1000L));
+
+        assertThat(getRows()).containsExactly("1/1/Hi again/0/-1");
+    }
+
+    @Test
+    public void testAddOrUpdate_handleReusedInNewSession_insertsNewRow() {
+        mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L));
+        mStore.setTelephonyId(DEVICE_ADDRESS, "1", 42L);
+        startNewSession();
+
+        mStore.addOrUpdate(message("1", "Bob", "Unrelated", 100000L));
+
+        assertThat(getRows()).containsExactly("1/1/Hi/0/42", "1/2/Unrelated/0/-1").inOrder();
+    }
+
+    @Test
+    public void testMarkAsReadAndSetTelephonyId_onlyAffectLatestSession() {
+        mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L));
+        startNewSession();
+        mStore.addOrUpdate(message("1", "Bob", "Unrelated", 100000L));
+
+        mStore.markAsRead(DEVICE_ADDRESS, Collections.singletonList("1"));
+        assertThat(mStore.setTelephonyId(DEVICE_ADDRESS, "1", 7L)).isTrue();
+
+        assertThat(getRows()).containsExactly("1/1/Hi/0/-1", "1/2/Unrelated/1/7").inOrder();
+        assertThat(mStore.getTelephonyIds(DEVICE_ADDRESS, Collections.singletonList("1")))
+                .containsExactly("1", 7L);
+    }
+
+    @Test
+    public void testMarkAsReadAndGetTelephonyIds_beyondParameterLimit() {
+        int count = 2 * ConversationStore.MAX_IN_PARAMETERS + 1;
+        List<String> handles = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String handle = Integer.toString(i);
+            handles.add(handle);
+            mStore.addOrUpdate(message(handle, "Alice", "Message " + i, 1000L * i));
+            mStore.setTelephonyId(DEVICE_ADDRESS, handle, i);
+        }
+
+        mStore.markAsRead(DEVICE_ADDRESS, handles);
+
+        assertThat(mStore.getTelephonyIds(DEVICE_ADDRESS, handles)).hasSize(count);
+        assertThat(DatabaseUtils.queryNumEntries(mStore.getReadableDatabase(),
+                ConversationStore.TABLE_MESSAGES, ConversationStore.COLUMN_READ_ON_CAR + "=0"))
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void testAddOrUpdate_onlyInsertionsReportNewRow() {
+        assertThat(mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L))).isTrue();
+        assertThat(mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L))).isFalse();
+        startNewSession();
+
+        assertThat(mStore.addOrUpdate(message("5", "Alice", "Hi", 3000L))).isFalse();
+    }
+
+    @Test
+    public void testRemoveExpiredMessages_adoptedRow_keepsFingerprintTime() {
+        mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L));
+        startNewSession();
+        mStore.addOrUpdate(message("5", "Alice", "Hi", 3000L));
+        mStore.endSession(DEVICE_ADDRESS, 4000L);
+        List<MapMessage> messages = new ArrayList<>();
+
+        mStore.removeExpiredMessages(5000L, 10, messages, new ArrayList<>());
+
+        assertThat(messages).hasSize(1);
+        assertThat(messages.get(0).getHandle()).isEqualTo("5");
+        assertThat(messages.get(0).getReceiveTime()).isEqualTo(1000L);
+    }
+
+    @Test
+    public void testSetTelephonyId_afterDisconnect_reachesLastSession() {
+        mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L));
+        mStore.endSession(DEVICE_ADDRESS, 2000L);
+
+        assertThat(mStore.setTelephonyId(DEVICE_ADDRESS, "1", 7L)).isTrue();
+        assertThat(mStore.setTelephonyId(DEVICE_ADDRESS, "2", 8L)).isFalse();
+        assertThat(getRows()).containsExactly("1/1/Hi/0/7");
+    }
+
+    @Test
+    public void testAddOrUpdate_sameMessageInNewSession_adoptsRow() {
+        mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L));
+        mStore.setTelephonyId(DEVICE_ADDRESS, "1", 42L);
+        startNewSession();
+        MapMessage again = message("5", "Alice", "Hi", 3000L);
+
+        assertThat(mStore.containsSimilar(again)).isTrue();
+        mStore.addOrUpdate(again);
+
+        assertThat(getRows()).containsExactly("5/2/Hi/0/42");
+        assertThat(mStore.getTelephonyIds(DEVICE_ADDRESS, Collections.singletonList("5")))
+                .containsExactly("5", 42L);
+    }
+
+    @Test
+    public void testAddOrUpdate_differentMessageInNewSession_isNotAdopted() {
+        mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L));
+        startNewSession();
+        MapMessage later = message("2", "Alice", "Hi", 60000L);
+
+        assertThat(mStore.containsSimilar(later)).isFalse();
+        mStore.addOrUpdate(later);
+
+        assertThat(getRows()).containsExactly("1/1/Hi/0/-1", "2/2/Hi/0/-1").inOrder();
+    }
+
+    @Test
+    public void testRemoveExpiredMessages_returnsRemovedMessages() {
+        mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L));
+        mStore.setTelephonyId(DEVICE_ADDRESS, "1", 42L);
+        startNewSession();
+        mStore.addOrUpdate(message("1", "Bob", "Still here", 100000L));
+        List<MapMessage> messages = new ArrayList<>();
+        List<Long> telephonyIds = new ArrayList<>();
+
+        assertThat(mStore.removeExpiredMessages(3000L, 10, messages, telephonyIds)).isEqualTo(1);
+
+        assertThat(messages).hasSize(1);
+        assertThat(messages.get(0).toString())
+                .isEqualTo(message("1", "Alice", "Hi", 1000L).toString());
+        assertThat(telephonyIds).containsExactly(42L);
+        assertThat(getRows()).containsExactly("1/2/Still here/0/-1");
+        assertThat(mStore.hasMessages(DEVICE_ADDRESS)).isTrue();
+    }
+
+    @Test
+    public void testHasMessages_falseOnceAllRemoved() {
+        mStore.addOrUpdate(message("1", "Alice", "Hi", 1000L));
+        mStore.endSession(DEVICE_ADDRESS, 2000L);
+
+        mStore.removeExpiredMessages(3000L, 10, new ArrayList<>(), new ArrayList<>());
+
+        assertThat(mStore.hasMessages(DEVICE_ADDRESS)).isFalse();
+    }
+
+    private void startNewSession() {
+        mStore.endSession(DEVICE_ADDRESS, 2000L);
+        assertThat(mStore.getActiveSession(DEVICE_ADDRESS)).isEqualTo(2L);
+    }
+
+    private static MapMessage message(String handle, String senderName, String text,
+            long receiveTime) {
+        return MapMessage.restore(DEVICE_ADDRESS, handle, senderName, null /* senderContactUri */,
+                text, receiveTime, /* isReadOnPhone= */ false, /* isReadOnCar= */ false);
+    }
+
+    /** Returns the stored messages as "handle/session/body/readOnCar/telephonyId", by row id. */
+    private List<String> getRows() {
+        List<String> rows = new ArrayList<>();
+        try (Cursor cursor = mStore.getReadableDatabase().query(ConversationStore.TABLE_MESSAGES,
+                new String[]{ConversationStore.COLUMN_HANDLE, ConversationStore.COLUMN_SESSION,
+                        ConversationStore.COLUMN_BODY, ConversationStore.COLUMN_READ_ON_CAR,
+                        ConversationStore.COLUMN_TELEPHONY_ID},
+                null /* selection */, null /* selectionArgs */, null /* groupBy */,
+                null /* having */, ConversationStore.COLUMN_ID)) {
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getString(0) + "/" + cursor.getLong(1) + "/"
+                        + cursor.getString(2) + "/" + cursor.getInt(3) + "/"
+                        + cursor.getLong(4));
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,87 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+@RunWith(RobolectricTestRunner.class)
+public class CountingBloomFilterTest {
+
+    private static final long FINGERPRINT_ONE = 0x1234567887654321L;
+    private static final long FINGERPRINT_TWO = 0x0fedcba98abcdef0L;
+
+    private CountingBloomFilter mFilter;
+
+    @Before
+    public void setUp() {
+        mFilter = new CountingBloomFilter(/* numCounters= */ 1024, /* numHashes= */ 4);
+    }
+
+    @Test
+    public void testEmptyFilter_containsNothing() {
+        assertThat(mFilter.mightContain(FINGERPRINT_ONE)).isFalse();
+        assertThat(mFilter.expectedFalsePositiveRate()).isEqualTo(0.0);
+    }
+
+    @Test
+    public void testAdd_mightContain() {
+        mFilter.add(FINGERPRINT_ONE);
+
+        assertThat(mFilter.mightContain(FINGERPRINT_ONE)).isTrue();
+        assertThat(mFilter.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRemove_keepsOtherFingerprints() {
+        mFilter.add(FINGERPRINT_ONE);
+        mFilter.add(FINGERPRINT_TWO);
+
+        mFilter.remove(FINGERPRINT_ONE);
+
+        assertThat(mFilter.mightContain(FINGERPRINT_ONE)).isFalse();
+        assertThat(mFilter.mightContain(FINGERPRINT_TWO)).isTrue();
+        assertThat(mFilter.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testAddTwice_removeOnce_stillContained() {
+        mFilter.add(FINGERPRINT_ONE);
+        mFilter.add(FINGERPRINT_ONE);
+
+        mFilter.remove(FINGERPRINT_ONE);
+
+        assertThat(mFilter.mightContain(FINGERPRINT_ONE)).isTrue();
+    }
+
+    @Test
+    public void testWriteAndRead_roundTrip() throws IOException {
+        mFilter.add(FINGERPRINT_ONE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        mFilter.writeTo(new DataOutputStream(bytes));
+
+        CountingBloomFilter restored = new CountingBloomFilter(1024, 4);
+        restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertThat(restored.mightContain(FINGERPRINT_ONE)).isTrue();
+        assertThat(restored.mightContain(FINGERPRINT_TWO)).isFalse();
+        assertThat(restored.size()).isEqualTo(1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testRead_differentDimensions_throws() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        mFilter.writeTo(new DataOutputStream(bytes));
+
+        new CountingBloomFilter(2048, 4).readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+}
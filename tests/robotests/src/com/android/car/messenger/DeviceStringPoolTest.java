@@ -0,0 +1,67 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class DeviceStringPoolTest {
+
+    private static final String DEVICE_ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final String OTHER_DEVICE_ADDRESS = "11:22:33:44:55:66";
+
+    private DeviceStringPool mStringPool;
+
+    @Before
+    public void setUp() {
+        mStringPool = new DeviceStringPool();
+    }
+
+    @Test
+    public void testIntern_returnsCanonicalInstance() {
+        String first = mStringPool.intern(DEVICE_ADDRESS, new String("Alice"));
+        String second = mStringPool.intern(DEVICE_ADDRESS, new String("Alice"));
+
+        assertThat(second).isSameAs(first);
+        assertThat(mStringPool.intern(DEVICE_ADDRESS, null)).isNull();
+    }
+
+    @Test
+    public void testIntern_separatesDevices() {
+        String first = mStringPool.intern(DEVICE_ADDRESS, new String("Alice"));
+        String second = mStringPool.intern(OTHER_DEVICE_ADDRESS, new String("Alice"));
+
+        assertThat(second).isNotSameAs(first);
+    }
+
+    @Test
+    public void testRelease_dropsDevicePool() {
+        String first = mStringPool.intern(DEVICE_ADDRESS, new String("Alice"));
+        mStringPool.intern(OTHER_DEVICE_ADDRESS, "Bob");
+
+        mStringPool.release(DEVICE_ADDRESS);
+
+        assertThat(mStringPool.size(DEVICE_ADDRESS)).isEqualTo(0);
+        assertThat(mStringPool.size(OTHER_DEVICE_ADDRESS)).isEqualTo(1);
+        assertThat(mStringPool.intern(DEVICE_ADDRESS, new String("Alice"))).isNotSameAs(first);
+    }
+
+    @Test
+    public void testIntern_afterCollection_replacesCanonicalInstance() {
+        String collected = mStringPool.intern(DEVICE_ADDRESS, new String("Alice"));
+        String otherDevice = mStringPool.intern(OTHER_DEVICE_ADDRESS, new String("Alice"));
+
+        mStringPool.clearReferences(DEVICE_ADDRESS);
+        String replacement = new String("Alice");
+
+        assertThat(mStringPool.intern(DEVICE_ADDRESS, replacement)).isSameAs(replacement);
+        assertThat(mStringPool.intern(DEVICE_ADDRESS, new String("Alice")))
+                .isSameAs(replacement);
+        assertThat(replacement).isNotSameAs(collected);
+        assertThat(mStringPool.intern(OTHER_DEVICE_ADDRESS, new String("Alice")))
+                .isSameAs(otherDevice);
+    }
+}
@@ -0,0 +1,124 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothMapClient;
+import android.content.Intent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageArenaTest {
+
+    private static final String BLUETOOTH_ADDRESS = "FA:F8:14:CA:32:39";
+
+    @Mock
+    private BluetoothDevice mMockBluetoothDevice;
+
+    private MessageArena mArena;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(BLUETOOTH_ADDRESS);
+        mArena = new MessageArena(/* capacityBytes= */ 64);
+    }
+
+    @Test
+    public void testStoreAndLoad_multiByteText() {
+        long ref = mArena.store("Grüße 👋");
+
+        assertThat(mArena.load(ref)).isEqualTo("Grüße 👋");
+        assertThat(mArena.getLiveBytes()).isEqualTo(mArena.getUsedBytes());
+    }
+
+    @Test
+    public void testStore_arenaFull() {
+        assertThat(mArena.store(new String(new char[65]))).isEqualTo(MessageArena.NO_REF);
+    }
+
+    @Test
+    public void testMoveTextToArena_textDecodedLazily() {
+        MapMessage message = createMessage("handle", "Hello");
+
+        message.moveTextToArena(mArena);
+
+        assertThat(message.getArenaRef()).isNotEqualTo(MessageArena.NO_REF);
+        assertThat(message.getMessageText()).isEqualTo("Hello");
+    }
+
+    @Test
+    public void testCompact_reclaimsReleasedText() {
+        MapMessage first = createMessage("first", "First message");
+        MapMessage second = createMessage("second", "Second message");
+        first.moveTextToArena(mArena);
+        second.moveTextToArena(mArena);
+
+        first.releaseArenaText();
+        mArena.compact(Collections.singletonList(second));
+
+        assertThat(mArena.getUsedBytes()).isEqualTo("Second message".length());
+        assertThat(mArena.getLiveBytes()).isEqualTo(mArena.getUsedBytes());
+        assertThat(second.getMessageText()).isEqualTo("Second message");
+    }
+
+    @Test
+    public void testReleaseArenaText_dropsReference() {
+        MapMessage message = createMessage("handle", "Hello");
+        message.moveTextToArena(mArena);
+
+        message.releaseArenaText();
+        mArena.compact(Collections.emptyList());
+
+        assertThat(message.getArenaRef()).isEqualTo(MessageArena.NO_REF);
+        assertThat(message.getMessageText()).isNull();
+        assertThat(mArena.getUsedBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testMoveTextToArena_fitsAfterCompaction() {
+        MapMessage first = createMessage("first", new String(new char[40]));
+        MapMessage second = createMessage("second", new String(new char[40]));
+        assertThat(first.moveTextToArena(mArena)).isTrue();
+        assertThat(second.moveTextToArena(mArena)).isFalse();
+
+        first.releaseArenaText();
+        mArena.compact(Collections.singletonList(second));
+
+        assertThat(second.moveTextToArena(mArena)).isTrue();
+        assertThat(second.getMessageText()).isEqualTo(new String(new char[40]));
+    }
+
+    @Test
+    public void testCompact_keepsAllLiveText() {
+        MapMessage first = createMessage("first", "First message");
+        MapMessage second = createMessage("second", "Second message");
+        first.moveTextToArena(mArena);
+        second.moveTextToArena(mArena);
+
+        mArena.compact(Arrays.asList(second, first));
+
+        assertThat(first.getMessageText()).isEqualTo("First message");
+        assertThat(second.getMessageText()).isEqualTo("Second message");
+    }
+
+    private MapMessage createMessage(String handle, String messageText) {
+        Intent intent = new Intent(BluetoothMapClient.ACTION_MESSAGE_RECEIVED);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mMockBluetoothDevice);
+        intent.putExtra(BluetoothMapClient.EXTRA_MESSAGE_HANDLE, handle);
+        intent.putExtra(BluetoothMapClient.EXTRA_SENDER_CONTACT_NAME, "testSender");
+        intent.putExtra(android.content.Intent.EXTRA_TEXT, messageText);
+        return MapMessage.parseFrom(intent);
+    }
+}
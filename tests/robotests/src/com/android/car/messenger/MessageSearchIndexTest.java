@@ -0,0 +1,93 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothMapClient;
+import android.content.Intent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageSearchIndexTest {
+
+    private static final String BLUETOOTH_ADDRESS = "FA:F8:14:CA:32:39";
+
+    @Mock
+    private BluetoothDevice mMockBluetoothDevice;
+
+    private MessageSearchIndex mSearchIndex;
+    private MessengerDelegate.MessageKey mDinnerKey;
+    private MessengerDelegate.MessageKey mMeetingKey;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(BLUETOOTH_ADDRESS);
+        mSearchIndex = new MessageSearchIndex(/* maxMessages= */ 2);
+
+        MapMessage dinner = createMessage("dinner", "Alex Smith", "Dinner at 8, okay?");
+        MapMessage meeting = createMessage("meeting", "Sam Jones", "Meeting moved to Friday");
+        mDinnerKey = new MessengerDelegate.MessageKey(dinner);
+        mMeetingKey = new MessengerDelegate.MessageKey(meeting);
+        mSearchIndex.add(mDinnerKey, dinner);
+        mSearchIndex.add(mMeetingKey, meeting);
+    }
+
+    @Test
+    public void testSearchText_caseInsensitiveTerm() {
+        assertThat(mSearchIndex.searchText("DINNER")).containsExactly(mDinnerKey);
+    }
+
+    @Test
+    public void testSearchText_prefix() {
+        assertThat(mSearchIndex.searchText("fri")).containsExactly(mMeetingKey);
+    }
+
+    @Test
+    public void testSearchText_allWordsMustMatch() {
+        assertThat(mSearchIndex.searchText("meeting dinner")).isEmpty();
+        assertThat(mSearchIndex.searchText("meeting fri")).containsExactly(mMeetingKey);
+    }
+
+    @Test
+    public void testSearchSender() {
+        assertThat(mSearchIndex.searchSender("alex")).containsExactly(mDinnerKey);
+        assertThat(mSearchIndex.searchSender("dinner")).isEmpty();
+    }
+
+    @Test
+    public void testRemove() {
+        mSearchIndex.remove(mDinnerKey);
+
+        assertThat(mSearchIndex.searchText("dinner")).isEmpty();
+        assertThat(mSearchIndex.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testAdd_evictsOldestAboveCap() {
+        MapMessage lunch = createMessage("lunch", "Alex Smith", "Lunch tomorrow?");
+        MessengerDelegate.MessageKey lunchKey = new MessengerDelegate.MessageKey(lunch);
+
+        mSearchIndex.add(lunchKey, lunch);
+
+        assertThat(mSearchIndex.size()).isEqualTo(2);
+        assertThat(mSearchIndex.searchSender("alex")).containsExactly(lunchKey);
+    }
+
+    private MapMessage createMessage(String handle, String senderName, String messageText) {
+        Intent intent = new Intent(BluetoothMapClient.ACTION_MESSAGE_RECEIVED);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mMockBluetoothDevice);
+        intent.putExtra(BluetoothMapClient.EXTRA_MESSAGE_HANDLE, handle);
+        intent.putExtra(BluetoothMapClient.EXTRA_SENDER_CONTACT_NAME, senderName);
+        intent.putExtra(android.content.Intent.EXTRA_TEXT, messageText);
+        return MapMessage.parseFrom(intent);
+    }
+}
@@ -10,6 +10,7 @@ import android.app.AppOpsManager;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothMapClient;
+import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build.VERSION_CODES;
@@ -25,9 +26,14 @@ import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadow.api.Shadow;
 import org.robolectric.shadows.ShadowBluetoothAdapter;
+import org.robolectric.shadows.ShadowLooper;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(shadows = {ShadowBluetoothAdapter.class}, sdk = {
@@ -149,6 +155,28 @@ public class MessengerDelegateTest {
         assertThat(mMessengerDelegate.mNotificationInfos).hasSize(1);
     }
 
+    @Test
+    public void testOnMapDisconnected_keepsStateDuringGracePeriod() {
+        mMessengerDelegate.onMessageReceived(mMessageOneIntent);
+
+        mMessengerDelegate.onMapDisconnected(BluetoothProfile.MAP_CLIENT);
+
+        assertThat(mMessengerDelegate.mMessages).containsKey(mMessageOneKey);
+        assertThat(mMessengerDelegate.mNotificationInfos).hasSize(1);
+    }
+
+    @Test
+    public void testOnMapDisconnected_dropsStateAfterGracePeriod() {
+        mMessengerDelegate.onMessageReceived(mMessageOneIntent);
+
+        mMessengerDelegate.onMapDisconnected(BluetoothProfile.MAP_CLIENT);
+        ShadowLooper.idleMainLooper(1, TimeUnit.MINUTES);
+
+        assertThat(mMessengerDelegate.mMessages).isEmpty();
+        assertThat(mMessengerDelegate.mNotificationInfos).isEmpty();
+        assertThat(mMessengerDelegate.mBTDeviceAddressToConnectionTimestamp).isEmpty();
+    }
+
     @Test
     public void testConnectedDevices_areNotAddedFromBTAdapterBondedDevices() {
         mShadowBluetoothAdapter.setBondedDevices(
@@ -199,6 +227,30 @@ public class MessengerDelegateTest {
         assertThat(mMessengerDelegate.mMessages.get(key).isReadOnCar()).isTrue();
     }
 
+    @Test
+    public void testHandleMarkAsRead_unknownSenderKeyIsIgnored() {
+        mMessengerDelegate.onMessageReceived(mMessageOneIntent);
+        SenderKey unknownKey = new SenderKey(BLUETOOTH_ADDRESS_TWO, "unknown/tel:5551234");
+
+        mMessengerDelegate.markAsRead(Arrays.asList(unknownKey, mSenderKey));
+
+        MessengerDelegate.NotificationInfo info = mMessengerDelegate.mNotificationInfos.get(
+                mSenderKey);
+        MessengerDelegate.MessageKey key = info.mMessageKeys.get(0);
+        assertThat(mMessengerDelegate.mMessages.get(key).isReadOnCar()).isTrue();
+    }
+
+    @Test
+    public void testClearNotifications_byKey_keepsNotificationData() {
+        mMessengerDelegate.onMessageReceived(mMessageOneIntent);
+
+        mMessengerDelegate.clearNotifications(Collections.singletonList(mSenderKey));
+
+        assertThat(mMessengerDelegate.mNotificationInfos.get(mSenderKey).mMessageKeys)
+                .hasSize(1);
+        assertThat(mMessengerDelegate.mMessages.containsKey(mMessageOneKey)).isTrue();
+    }
+
     @Test
     public void testMessageReadOnPhone() {
         Intent readMessageIntent = createMessageIntent(mMockBluetoothDeviceOne, "mockHandle",
@@ -228,6 +280,80 @@ public class MessengerDelegateTest {
 
     }
 
+    @Test
+    public void testGetMessages_pagesNewestFirst() {
+        receiveConversation("h1", "h2", "h3");
+
+        MessagePage first = mMessengerDelegate.getMessages(mSenderKey, null, 2);
+        MessagePage second = mMessengerDelegate.getMessages(mSenderKey,
+                first.getNextPageToken(), 2);
+
+        assertThat(getHandles(first)).containsExactly("h3", "h2").inOrder();
+        assertThat(first.getNextPageToken()).isNotNull();
+        assertThat(getHandles(second)).containsExactly("h1");
+        assertThat(second.getNextPageToken()).isNull();
+    }
+
+    @Test
+    public void testGetMessages_anchorRemoved_continuesAfterIt() {
+        receiveConversation("h1", "h2", "h3");
+        MessagePage first = mMessengerDelegate.getMessages(mSenderKey, null, 1);
+
+        mMessengerDelegate.mMessages.remove(
+                new MessengerDelegate.MessageKey(BLUETOOTH_ADDRESS_ONE, "h3"));
+        mMessengerDelegate.mNotificationInfos.get(mSenderKey)
+                .retainMessageKeys(mMessengerDelegate.mMessages);
+        MessagePage second = mMessengerDelegate.getMessages(mSenderKey,
+                first.getNextPageToken(), 1);
+
+        assertThat(getHandles(first)).containsExactly("h3");
+        assertThat(getHandles(second)).containsExactly("h2");
+        assertThat(second.getNextPageToken()).isNotNull();
+    }
+
+    @Test
+    public void testGetMessages_clampsPageSize() {
+        receiveConversation("h1", "h2");
+
+        MessagePage page = mMessengerDelegate.getMessages(mSenderKey, null, Integer.MAX_VALUE);
+
+        assertThat(getHandles(page)).containsExactly("h2", "h1").inOrder();
+        assertThat(page.getNextPageToken()).isNull();
+    }
+
+    @Test
+    public void testSearchMessages_returnsSnapshots() {
+        mMessengerDelegate.onMessageReceived(mMessageOneIntent);
+
+        List<MessagePage.Message> results = mMessengerDelegate.searchMessages("hello");
+        // Replaces the live message, releasing its text.
+        mMessengerDelegate.onMessageReceived(createMessageIntent(mMockBluetoothDeviceOne,
+                "mockHandle", "510-111-2222", "testSender", "Changed", /* timestamp= */ null,
+                /* isReadOnPhone */ false));
+
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0).getHandle()).isEqualTo("mockHandle");
+        assertThat(results.get(0).getMessageText()).isEqualTo("Hello");
+    }
+
+    /** Receives messages with the given handles from the sender of message one, oldest first. */
+    private void receiveConversation(String... handles) {
+        long timestamp = System.currentTimeMillis() + 10000L;
+        for (String handle : handles) {
+            mMessengerDelegate.onMessageReceived(createMessageIntent(mMockBluetoothDeviceOne,
+                    handle, "510-111-2222", "testSender", "Hello " + handle, timestamp++,
+                    /* isReadOnPhone */ false));
+        }
+    }
+
+    private static List<String> getHandles(MessagePage page) {
+        List<String> handles = new ArrayList<>();
+        for (MessagePage.Message message : page.getMessages()) {
+            handles.add(message.getHandle());
+        }
+        return handles;
+    }
+
     private Intent createMessageIntent(BluetoothDevice device, String handle, String senderUri,
             String senderName, String messageText, Long timestamp, boolean isReadOnPhone) {
         Intent intent = new Intent();
@@ -0,0 +1,73 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class NotificationGroupsTest {
+
+    private static final String DEVICE_ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+    private final SenderKey mSenderKey1 = new SenderKey(DEVICE_ADDRESS, "Alice/tel:1");
+    private final SenderKey mSenderKey2 = new SenderKey(DEVICE_ADDRESS, "Bob/tel:2");
+    private final SenderKey mSenderKey3 = new SenderKey(DEVICE_ADDRESS, "Carol/tel:3");
+
+    private NotificationGroups mNotificationGroups;
+
+    @Before
+    public void setUp() {
+        mNotificationGroups = new NotificationGroups(/* threshold= */ 3);
+    }
+
+    @Test
+    public void testAdd_collapsesFromThreshold() {
+        NotificationGroups.Group group = mNotificationGroups.getGroup(DEVICE_ADDRESS);
+
+        assertThat(group.add(mSenderKey1)).isFalse();
+        assertThat(group.add(mSenderKey2)).isFalse();
+        assertThat(group.add(mSenderKey3)).isTrue();
+        assertThat(group.isSummaryShown()).isTrue();
+    }
+
+    @Test
+    public void testRemove_keepsSummaryUntilEmpty() {
+        NotificationGroups.Group group = mNotificationGroups.getGroup(DEVICE_ADDRESS);
+        group.add(mSenderKey1);
+        group.add(mSenderKey2);
+        group.add(mSenderKey3);
+
+        assertThat(group.remove(mSenderKey1)).isTrue();
+        assertThat(group.remove(mSenderKey2)).isTrue();
+        assertThat(group.isSummaryShown()).isTrue();
+        assertThat(group.add(mSenderKey1)).isTrue();
+        assertThat(group.remove(mSenderKey1)).isTrue();
+        assertThat(group.remove(mSenderKey1)).isFalse();
+        assertThat(group.remove(mSenderKey3)).isTrue();
+        assertThat(group.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testGetSenderKeys_mostRecentlyUpdatedFirst() {
+        NotificationGroups.Group group = mNotificationGroups.getGroup(DEVICE_ADDRESS);
+        group.add(mSenderKey1);
+        group.add(mSenderKey2);
+        group.add(mSenderKey1);
+
+        assertThat(group.getSenderKeys()).containsExactly(mSenderKey1, mSenderKey2).inOrder();
+    }
+
+    @Test
+    public void testGetGroup_separatesDevices() {
+        NotificationGroups.Group group = mNotificationGroups.getGroup(DEVICE_ADDRESS);
+        NotificationGroups.Group otherGroup = mNotificationGroups.getGroup("11:22:33:44:55:66");
+
+        assertThat(mNotificationGroups.getGroup(DEVICE_ADDRESS)).isSameAs(group);
+        assertThat(otherGroup.getKey()).isNotEqualTo(group.getKey());
+        assertThat(otherGroup.getSummaryId()).isNotEqualTo(group.getSummaryId());
+        assertThat(group.getSummaryId()).isLessThan(0);
+    }
+}
@@ -0,0 +1,84 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.core.app.NotificationCompat.MessagingStyle;
+import androidx.core.app.Person;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class NotificationPayloadBudgetTest {
+
+    private final Person mSender = new Person.Builder().setName("Sender").build();
+
+    @Test
+    public void testFit_keepsNewestMessages() {
+        NotificationPayloadBudget budget = new NotificationPayloadBudget(
+                /* maxMessages= */ 2, /* maxTextBytes= */ 1000, /* maxMessageBytes= */ 1000);
+
+        List<MessagingStyle.Message> kept = budget.fit(messages("one", "two", "three"));
+
+        assertThat(texts(kept)).containsExactly("two", "three").inOrder();
+    }
+
+    @Test
+    public void testFit_ellipsizesLongMessage() {
+        NotificationPayloadBudget budget = new NotificationPayloadBudget(10, 1000, 60);
+
+        List<MessagingStyle.Message> kept = budget.fit(messages(repeat('a', 50)));
+
+        assertThat(texts(kept)).containsExactly(repeat('a', 29) + "…");
+        assertThat(kept.get(0).getTimestamp()).isEqualTo(0);
+    }
+
+    @Test
+    public void testFit_stopsAtTextBudget() {
+        NotificationPayloadBudget budget = new NotificationPayloadBudget(10, 100, 100);
+
+        List<MessagingStyle.Message> kept = budget.fit(
+                messages(repeat('a', 40), repeat('b', 40), repeat('c', 40)));
+
+        // 50 chars fit: the newest message, then too little room left to show another.
+        assertThat(texts(kept)).containsExactly(repeat('c', 40));
+    }
+
+    @Test
+    public void testFit_doesNotSplitSurrogatePairs() {
+        NotificationPayloadBudget budget = new NotificationPayloadBudget(10, 1000, 60);
+        String emoji = "😀";
+
+        List<MessagingStyle.Message> kept = budget.fit(
+                messages(repeat('a', 28) + emoji + repeat('a', 20)));
+
+        assertThat(texts(kept)).containsExactly(repeat('a', 28) + "…");
+    }
+
+    private List<MessagingStyle.Message> messages(String... texts) {
+        List<MessagingStyle.Message> messages = new ArrayList<>();
+        for (int i = 0; i < texts.length; i++) {
+            messages.add(new MessagingStyle.Message(texts[i], i, mSender));
+        }
+        return messages;
+    }
+
+    private static List<String> texts(List<MessagingStyle.Message> messages) {
+        List<String> texts = new ArrayList<>();
+        for (MessagingStyle.Message message : messages) {
+            texts.add(message.getText().toString());
+        }
+        return texts;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,42 @@
+package com.android.car.messenger;
+
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.function.Supplier;
+
+@RunWith(RobolectricTestRunner.class)
+public class NotificationRendererTest {
+
+    @Mock
+    private NotificationManager mMockNotificationManager;
+    @Mock
+    private Supplier<Notification> mMockNotification;
+
+    private NotificationRenderer mRenderer;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mRenderer = new NotificationRenderer(mMockNotificationManager, /* numThreads= */ 2);
+    }
+
+    @Test
+    public void testRenderAndCancel_afterShutdown_areIgnored() {
+        mRenderer.shutdown();
+
+        mRenderer.render(1, mMockNotification);
+        mRenderer.cancel(1);
+
+        verifyZeroInteractions(mMockNotification, mMockNotificationManager);
+    }
+}
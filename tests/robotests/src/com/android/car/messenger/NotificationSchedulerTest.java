@@ -0,0 +1,116 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.app.Notification;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class NotificationSchedulerTest {
+
+    private static final int UPDATES_PER_SECOND = 2;
+
+    @Mock
+    private NotificationRenderer mMockNotificationRenderer;
+
+    private final Notification mNotification = new Notification();
+    private long mNow;
+    private NotificationScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mNow = 1000;
+        mScheduler = new NotificationScheduler(mMockNotificationRenderer,
+                new Handler(Looper.getMainLooper()), UPDATES_PER_SECOND, () -> mNow);
+    }
+
+    @Test
+    public void testNotify_postsImmediatelyWithinBurst() {
+        mScheduler.notify(1, /* lastActivityTime= */ 10, /* unreadCount= */ 1,
+                () -> mNotification);
+        mScheduler.notify(2, 20, 1, () -> mNotification);
+
+        verify(mMockNotificationRenderer).render(eq(1), any());
+        verify(mMockNotificationRenderer).render(eq(2), any());
+        assertThat(mScheduler.getBacklogSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void testNotify_queuesBeyondBurst() {
+        mScheduler.notify(1, 10, 1, () -> mNotification);
+        mScheduler.notify(2, 20, 1, () -> mNotification);
+        mScheduler.notify(3, 30, 1, () -> mNotification);
+
+        verify(mMockNotificationRenderer, never()).render(eq(3), any());
+        assertThat(mScheduler.getBacklogSize()).isEqualTo(1);
+    }
+
+    @Test
+    public void testNotify_mergesUpdatesOfSameNotification() {
+        mScheduler.notify(1, 10, 1, () -> mNotification);
+        mScheduler.notify(2, 20, 1, () -> mNotification);
+        mScheduler.notify(3, 30, 1, () -> mNotification);
+        mScheduler.notify(3, 40, 2, () -> mNotification);
+
+        assertThat(mScheduler.getBacklogSize()).isEqualTo(1);
+    }
+
+    @Test
+    public void testBacklog_servesNewestThenMostUnreadFirst() {
+        mScheduler.notify(1, 10, 1, () -> mNotification);
+        mScheduler.notify(2, 10, 1, () -> mNotification);
+        mScheduler.notify(3, 30, 1, () -> mNotification);
+        mScheduler.notify(4, 50, 1, () -> mNotification);
+        mScheduler.notify(5, 30, 4, () -> mNotification);
+
+        mNow += 1500;
+        mScheduler.notify(6, 40, 1, () -> mNotification);
+
+        InOrder inOrder = inOrder(mMockNotificationRenderer);
+        inOrder.verify(mMockNotificationRenderer).render(eq(4), any());
+        inOrder.verify(mMockNotificationRenderer).render(eq(6), any());
+        verify(mMockNotificationRenderer, never()).render(eq(5), any());
+        verify(mMockNotificationRenderer, never()).render(eq(3), any());
+
+        mNow += 1000;
+        mScheduler.notify(7, 0, 0, () -> mNotification);
+
+        inOrder.verify(mMockNotificationRenderer).render(eq(5), any());
+        inOrder.verify(mMockNotificationRenderer).render(eq(3), any());
+        verify(mMockNotificationRenderer, never()).render(eq(7), any());
+    }
+
+    @Test
+    public void testCancel_dropsPendingUpdate() {
+        mScheduler.notify(1, 10, 1, () -> mNotification);
+        mScheduler.notify(2, 20, 1, () -> mNotification);
+        mScheduler.notify(3, 30, 1, () -> mNotification);
+
+        mScheduler.cancel(3);
+        mNow += 1000;
+        mScheduler.notify(4, 40, 1, () -> mNotification);
+
+        verify(mMockNotificationRenderer).cancel(3);
+        verify(mMockNotificationRenderer, never()).render(eq(3), any());
+        verify(mMockNotificationRenderer).render(eq(4), any());
+        verify(mMockNotificationRenderer, times(3)).render(anyInt(), any());
+    }
+}
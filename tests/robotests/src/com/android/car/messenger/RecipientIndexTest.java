@@ -0,0 +1,55 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class RecipientIndexTest {
+
+    private static final String SENDER_URI = "tel:+16505550100";
+
+    private RecipientIndex mRecipientIndex;
+    private SenderKey mFirstDeviceKey;
+    private SenderKey mSecondDeviceKey;
+
+    @Before
+    public void setUp() {
+        mRecipientIndex = new RecipientIndex("US");
+        mFirstDeviceKey = new SenderKey("FA:F8:14:CA:32:39", "Alex/" + SENDER_URI);
+        mSecondDeviceKey = new SenderKey("FA:F8:14:CA:32:40", "Alex/" + SENDER_URI);
+    }
+
+    @Test
+    public void testLookup_matchesOtherFormatsOfNumber() {
+        mRecipientIndex.put(SENDER_URI, mFirstDeviceKey);
+
+        assertThat(mRecipientIndex.lookup("+16505550100")).isEqualTo(mFirstDeviceKey);
+        assertThat(mRecipientIndex.lookup("(650) 555-0100")).isEqualTo(mFirstDeviceKey);
+        assertThat(mRecipientIndex.lookup("6505550199")).isNull();
+    }
+
+    @Test
+    public void testPut_latestDeviceWins() {
+        mRecipientIndex.put(SENDER_URI, mFirstDeviceKey);
+        mRecipientIndex.put(SENDER_URI, mSecondDeviceKey);
+
+        assertThat(mRecipientIndex.lookup(SENDER_URI)).isEqualTo(mSecondDeviceKey);
+        assertThat(mRecipientIndex.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRemove_keepsEntryOfOtherConversation() {
+        mRecipientIndex.put(SENDER_URI, mSecondDeviceKey);
+        mRecipientIndex.remove(SENDER_URI, mFirstDeviceKey);
+
+        assertThat(mRecipientIndex.lookup(SENDER_URI)).isEqualTo(mSecondDeviceKey);
+
+        mRecipientIndex.remove(SENDER_URI, mSecondDeviceKey);
+
+        assertThat(mRecipientIndex.lookup(SENDER_URI)).isNull();
+    }
+}
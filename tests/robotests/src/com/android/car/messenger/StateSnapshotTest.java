@@ -0,0 +1,136 @@
+package com.android.car.messenger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.car.messenger.MessengerDelegate.MessageKey;
+import com.android.car.messenger.MessengerDelegate.NotificationInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+public class StateSnapshotTest {
+
+    private static final String DEVICE_ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+    private File mDirectory;
+    private StateSnapshot mStateSnapshot;
+    private final RecordingCallback mCallback = new RecordingCallback();
+
+    @Before
+    public void setUp() {
+        mDirectory = RuntimeEnvironment.application.getFilesDir();
+        mStateSnapshot = new StateSnapshot(mDirectory);
+    }
+
+    @Test
+    public void testSaveAndRestore_roundTrip() throws Exception {
+        MapMessage withUri = MapMessage.restore(DEVICE_ADDRESS, "1", "Alice", "tel:1",
+                "Grüße 👋", 1000L, /* isReadOnPhone= */ true, /* isReadOnCar= */ false);
+        MapMessage withoutUri = MapMessage.restore(DEVICE_ADDRESS, "2", "Bob", null,
+                "Hi", 2000L, /* isReadOnPhone= */ false, /* isReadOnCar= */ true);
+        Map<MessageKey, MapMessage> messages = new LinkedHashMap<>();
+        messages.put(new MessageKey(withUri), withUri);
+        messages.put(new MessageKey(withoutUri), withoutUri);
+        SenderKey senderKey = new SenderKey(withUri);
+        NotificationInfo info = new NotificationInfo("Alice", "tel:1", 7);
+        info.mMessageKeys.add(new MessageKey(withUri));
+        Map<SenderKey, NotificationInfo> notificationInfos = new HashMap<>();
+        notificationInfos.put(senderKey, info);
+        Map<String, Long> timestamps = new HashMap<>();
+        timestamps.put(DEVICE_ADDRESS, 500L);
+
+        mStateSnapshot.save(timestamps, messages, notificationInfos);
+        mStateSnapshot.awaitPendingWrites();
+
+        assertThat(new StateSnapshot(mDirectory).restore(mCallback)).isTrue();
+        assertThat(mCallback.mTimestamps).containsExactly(DEVICE_ADDRESS, 500L);
+        assertThat(mCallback.mMessages).hasSize(2);
+        assertThat(mCallback.mMessages.get(0).toString()).isEqualTo(withUri.toString());
+        assertThat(mCallback.mMessages.get(1).toString()).isEqualTo(withoutUri.toString());
+        assertThat(mCallback.mNotificationInfos).containsKey(senderKey);
+        NotificationInfo restoredInfo = mCallback.mNotificationInfos.get(senderKey);
+        assertThat(restoredInfo.mNotificationId).isEqualTo(7);
+        assertThat(restoredInfo.mSenderName).isEqualTo("Alice");
+        assertThat(restoredInfo.mSenderContactUri).isEqualTo("tel:1");
+        assertThat(restoredInfo.mMessageKeys).containsExactly(new MessageKey(withUri));
+    }
+
+    @Test
+    public void testRestore_noSnapshot() {
+        assertThat(mStateSnapshot.restore(mCallback)).isFalse();
+    }
+
+    @Test
+    public void testClear_deletesSnapshot() throws Exception {
+        mStateSnapshot.save(new HashMap<>(), new HashMap<>(), new HashMap<>());
+        mStateSnapshot.clear();
+        mStateSnapshot.awaitPendingWrites();
+
+        assertThat(mStateSnapshot.restore(mCallback)).isFalse();
+    }
+
+    @Test
+    public void testRestore_discardsCorruptSnapshot() throws Exception {
+        try (FileOutputStream out =
+                new FileOutputStream(new File(mDirectory, "messenger_state.bin"))) {
+            out.write(new byte[] {1, 2, 3});
+        }
+
+        assertThat(mStateSnapshot.restore(mCallback)).isFalse();
+        assertThat(mStateSnapshot.restore(mCallback)).isFalse();
+        assertThat(new File(mDirectory, "messenger_state.bin").exists()).isFalse();
+    }
+
+    @Test
+    public void testRestore_discardsSnapshotWithInvalidStringLength() throws Exception {
+        for (int length : new int[] {Integer.MAX_VALUE, -2}) {
+            Map<String, Long> timestamps = new HashMap<>();
+            timestamps.put(DEVICE_ADDRESS, 500L);
+            mStateSnapshot.save(timestamps, new HashMap<>(), new HashMap<>());
+            mStateSnapshot.awaitPendingWrites();
+            File file = new File(mDirectory, "messenger_state.bin");
+            byte[] data = Files.readAllBytes(file.toPath());
+            // Length of the first device address, after the magic, version and timestamp count.
+            ByteBuffer.wrap(data).putInt(12, length);
+            Files.write(file.toPath(), data);
+
+            assertThat(mStateSnapshot.restore(mCallback)).isFalse();
+            assertThat(file.exists()).isFalse();
+        }
+    }
+
+    private static class RecordingCallback implements StateSnapshot.Callback {
+        final Map<String, Long> mTimestamps = new HashMap<>();
+        final List<MapMessage> mMessages = new ArrayList<>();
+        final Map<SenderKey, NotificationInfo> mNotificationInfos = new HashMap<>();
+
+        @Override
+        public void onConnectionTimestamp(String deviceAddress, long timestamp) {
+            mTimestamps.put(deviceAddress, timestamp);
+        }
+
+        @Override
+        public void onMessage(MapMessage message) {
+            mMessages.add(message);
+        }
+
+        @Override
+        public void onNotificationInfo(SenderKey senderKey, NotificationInfo notificationInfo) {
+            mNotificationInfos.put(senderKey, notificationInfo);
+        }
+    }
+}
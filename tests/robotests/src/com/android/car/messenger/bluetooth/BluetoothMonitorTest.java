@@ -14,6 +14,9 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
 
 @RunWith(RobolectricTestRunner.class)
 public class BluetoothMonitorTest {
@@ -45,6 +48,31 @@ public class BluetoothMonitorTest {
         verify(mockBluetoothEventListener).onMapDisconnected(BluetoothProfile.MAP_CLIENT);
     }
 
+    @Test
+    public void testServiceListener_reconnectsAfterDelay() {
+        mServiceListener.onServiceConnected(BluetoothProfile.MAP_CLIENT, mockMapClient);
+        int attemptCount = mBluetoothMonitor.getConnectAttemptCount();
+
+        mServiceListener.onServiceDisconnected(BluetoothProfile.MAP_CLIENT);
+        assertThat(mBluetoothMonitor.getConnectAttemptCount()).isEqualTo(attemptCount);
+
+        ShadowLooper.idleMainLooper(1, TimeUnit.MINUTES);
+        assertThat(mBluetoothMonitor.getConnectAttemptCount()).isEqualTo(attemptCount + 1);
+    }
+
+    @Test
+    public void testServiceListener_reconnectsOnceWhileFlapping() {
+        mServiceListener.onServiceConnected(BluetoothProfile.MAP_CLIENT, mockMapClient);
+        int attemptCount = mBluetoothMonitor.getConnectAttemptCount();
+
+        for (int i = 0; i < 5; i++) {
+            mServiceListener.onServiceDisconnected(BluetoothProfile.MAP_CLIENT);
+        }
+        ShadowLooper.idleMainLooper(1, TimeUnit.MINUTES);
+
+        assertThat(mBluetoothMonitor.getConnectAttemptCount()).isEqualTo(attemptCount + 1);
+    }
+
     @Test
     public void testRegisterListener() {
         assertThat(mBluetoothMonitor.registerListener(mockBluetoothEventListener)).isFalse();
@@ -0,0 +1,72 @@
+package com.android.car.messenger.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+public class ReconnectBackoffTest {
+
+    @Test
+    public void testNextDelayMs_doublesUpToMax() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 5000, fixedRandom(1.0));
+
+        assertThat(backoff.nextDelayMs()).isEqualTo(1000);
+        assertThat(backoff.nextDelayMs()).isEqualTo(2000);
+        assertThat(backoff.nextDelayMs()).isEqualTo(4000);
+        assertThat(backoff.nextDelayMs()).isEqualTo(5000);
+        assertThat(backoff.nextDelayMs()).isEqualTo(5000);
+    }
+
+    @Test
+    public void testNextDelayMs_jittersDownToHalf() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 5000, fixedRandom(0.0));
+
+        assertThat(backoff.nextDelayMs()).isEqualTo(500);
+        assertThat(backoff.nextDelayMs()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testNextDelayMs_staysWithinBounds() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new Random(42));
+
+        for (int i = 0; i < 100; i++) {
+            long delayMs = backoff.nextDelayMs();
+            assertThat(delayMs).isAtLeast(500L);
+            assertThat(delayMs).isAtMost(60000L);
+        }
+    }
+
+    @Test
+    public void testReset_startsOver() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 5000, fixedRandom(1.0));
+        backoff.nextDelayMs();
+        backoff.nextDelayMs();
+
+        backoff.reset();
+
+        assertThat(backoff.nextDelayMs()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testIsStable() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 5000, new Random());
+
+        assertThat(backoff.isStable(4999)).isFalse();
+        assertThat(backoff.isStable(5000)).isTrue();
+    }
+
+    /** Returns a {@link Random} whose {@link Random#nextDouble()} is always {@code value}. */
+    private static Random fixedRandom(double value) {
+        return new Random() {
+            @Override
+            public double nextDouble() {
+                return value;
+            }
+        };
+    }
+}